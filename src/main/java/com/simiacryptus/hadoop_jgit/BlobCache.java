@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of blob bytes in direct buffers, shared by every mount of the JVM. Blob ids are immutable,
+ * so entries are never invalidated, only evicted to stay under the byte budget.
+ * <p>
+ * Eviction follows W-TinyLFU: new blobs enter a small LRU window; a blob leaving the window only displaces the
+ * least recently used blob of the main segment if a frequency sketch has seen it more often, so a one-off scan of
+ * many files cannot flush the hot set. The main segment is a segmented LRU whose protected part holds blobs read
+ * again after admission.
+ */
+final class BlobCache {
+  private static final int WINDOW_PERCENT = 1;
+  private static final int PROTECTED_PERCENT = 80;
+  private final long capacity;
+  private final long maxBlobSize;
+  private final long windowCapacity;
+  private final long protectedCapacity;
+  private final LinkedHashMap<ObjectId, ByteBuffer> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<ObjectId, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<ObjectId, ByteBuffer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+  private final FrequencySketch sketch;
+  private long windowSize = 0;
+  private long probationSize = 0;
+  private long protectedSize = 0;
+
+  /**
+   * @param capacity    total bytes of blob content held
+   * @param maxBlobSize largest blob admitted; larger ones are streamed as before
+   */
+  public BlobCache(final long capacity, final long maxBlobSize) {
+    this.capacity = capacity;
+    this.maxBlobSize = Math.min(maxBlobSize, capacity);
+    this.windowCapacity = Math.max(this.maxBlobSize, capacity * WINDOW_PERCENT / 100);
+    this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+    this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, capacity / 4096)));
+  }
+
+  public long getMaxBlobSize() {
+    return maxBlobSize;
+  }
+
+  public synchronized long getSize() {
+    return windowSize + probationSize + protectedSize;
+  }
+
+  /**
+   * A read-only view of the cached blob positioned at its start, or null if it is not cached.
+   * Every lookup counts towards the blob's admission frequency, hit or miss.
+   */
+  @Nullable
+  public synchronized ByteBuffer get(@Nonnull final AnyObjectId id) {
+    sketch.increment(id);
+    ByteBuffer buffer = window.get(id);
+    if (null == buffer) buffer = protectedSegment.get(id);
+    if (null == buffer) {
+      buffer = probation.remove(id);
+      if (null == buffer) return null;
+      probationSize -= buffer.capacity();
+      protectedSegment.put(id.copy(), buffer);
+      protectedSize += buffer.capacity();
+      demoteProtected();
+    }
+    return buffer.duplicate();
+  }
+
+  /**
+   * Copies the blob into a direct buffer and offers it to the cache. Returns a read-only view of the copy,
+   * which stays valid whether or not it was admitted.
+   */
+  @Nonnull
+  public ByteBuffer put(@Nonnull final AnyObjectId id, @Nonnull final byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes).flip();
+    buffer = buffer.asReadOnlyBuffer();
+    if (bytes.length > maxBlobSize) return buffer;
+    synchronized (this) {
+      if (window.containsKey(id) || probation.containsKey(id) || protectedSegment.containsKey(id)) return buffer.duplicate();
+      window.put(id.copy(), buffer);
+      windowSize += buffer.capacity();
+      while (windowSize > windowCapacity) {
+        Map.Entry<ObjectId, ByteBuffer> candidate = removeEldest(window);
+        windowSize -= candidate.getValue().capacity();
+        admit(candidate.getKey(), candidate.getValue());
+      }
+    }
+    return buffer.duplicate();
+  }
+
+  /**
+   * Moves a blob leaving the window into probation if it is read more often than the blobs it would displace.
+   */
+  private void admit(@Nonnull final ObjectId id, @Nonnull final ByteBuffer buffer) {
+    int frequency = sketch.frequency(id);
+    long needed = buffer.capacity() - (capacity - windowCapacity - probationSize - protectedSize);
+    if (needed > 0) {
+      long freed = 0;
+      Iterator<Map.Entry<ObjectId, ByteBuffer>> victims = (probation.isEmpty() ? protectedSegment : probation).entrySet().iterator();
+      while (freed < needed && victims.hasNext()) {
+        Map.Entry<ObjectId, ByteBuffer> victim = victims.next();
+        if (sketch.frequency(victim.getKey()) >= frequency) return;
+        freed += victim.getValue().capacity();
+      }
+      if (freed < needed) return;
+      while (needed > 0) {
+        LinkedHashMap<ObjectId, ByteBuffer> segment = probation.isEmpty() ? protectedSegment : probation;
+        Map.Entry<ObjectId, ByteBuffer> victim = removeEldest(segment);
+        long size = victim.getValue().capacity();
+        if (segment == probation) probationSize -= size;
+        else protectedSize -= size;
+        needed -= size;
+      }
+    }
+    probation.put(id, buffer);
+    probationSize += buffer.capacity();
+  }
+
+  private void demoteProtected() {
+    while (protectedSize > protectedCapacity) {
+      Map.Entry<ObjectId, ByteBuffer> eldest = removeEldest(protectedSegment);
+      protectedSize -= eldest.getValue().capacity();
+      probation.put(eldest.getKey(), eldest.getValue());
+      probationSize += eldest.getValue().capacity();
+    }
+  }
+
+  @Nonnull
+  private static Map.Entry<ObjectId, ByteBuffer> removeEldest(@Nonnull final LinkedHashMap<ObjectId, ByteBuffer> segment) {
+    Iterator<Map.Entry<ObjectId, ByteBuffer>> iterator = segment.entrySet().iterator();
+    Map.Entry<ObjectId, ByteBuffer> eldest = iterator.next();
+    iterator.remove();
+    return eldest;
+  }
+
+  /**
+   * Count-min sketch of 4-bit counters over four rows, halved every 10 * width increments so that old
+   * popularity fades.
+   */
+  private static final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private final byte[][] rows;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(final int width) {
+      int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+      this.rows = new byte[DEPTH][size];
+      this.mask = size - 1;
+      this.sampleSize = 10 * size;
+    }
+
+    void increment(@Nonnull final AnyObjectId id) {
+      int hash = id.hashCode();
+      for (int i = 0; i < DEPTH; i++) {
+        int index = index(hash, i);
+        if (rows[i][index] < 15) rows[i][index]++;
+      }
+      if (++additions >= sampleSize) {
+        for (byte[] row : rows) {
+          for (int j = 0; j < row.length; j++) row[j] >>= 1;
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(@Nonnull final AnyObjectId id) {
+      int hash = id.hashCode();
+      int frequency = 15;
+      for (int i = 0; i < DEPTH; i++) frequency = Math.min(frequency, rows[i][index(hash, i)]);
+      return frequency;
+    }
+
+    private int index(final int hash, final int row) {
+      int h = hash * SEEDS[row];
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.StreamCapabilities;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Reads a blob from the object database. Blobs up to the stream threshold are held in memory; larger ones are
+ * inflated sequentially, and the first backward seek or positioned read spools the blob once to a temporary file,
+ * so further random access reads the file directly instead of re-inflating from the start.
+ */
+class BlobInputStream extends FSInputStream implements ByteBufferReadable, ByteBufferPositionedReadable, CanSetReadahead, StreamCapabilities {
+  @Nonnull
+  private final ObjectReader reader;
+  @Nonnull
+  private final ObjectId blobId;
+  @Nonnull
+  private final File spoolDir;
+  @Nullable
+  private final FileSystem.Statistics statistics;
+  private final long length;
+  @Nullable
+  private final byte[] cachedBytes;
+  @Nullable
+  private InputStream stream;
+  @Nullable
+  private volatile ChannelInputStream spooled;
+  @Nullable
+  private Long readahead;
+  private long position = 0;
+  private volatile boolean closed = false;
+
+  public BlobInputStream(@Nonnull final Repository repository, @Nonnull final AnyObjectId blobId, final long streamThreshold, @Nonnull final File spoolDir, @Nullable final FileSystem.Statistics statistics) throws IOException {
+    this.reader = repository.newObjectReader();
+    this.blobId = blobId.copy();
+    this.spoolDir = spoolDir;
+    this.statistics = statistics;
+    try {
+      ObjectLoader loader = reader.open(this.blobId, Constants.OBJ_BLOB);
+      this.length = loader.getSize();
+      if (!loader.isLarge() && this.length <= streamThreshold) {
+        this.cachedBytes = loader.getCachedBytes();
+        this.reader.close();
+      } else {
+        this.cachedBytes = null;
+        this.stream = loader.openStream();
+      }
+    } catch (IOException | RuntimeException e) {
+      this.reader.close();
+      throw e;
+    }
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public synchronized void seek(final long pos) throws IOException {
+    checkOpen();
+    if (pos < 0) throw new EOFException("Cannot seek to negative offset " + pos);
+    if (pos > length) throw new EOFException("Cannot seek past end of blob: " + pos + " > " + length);
+    if (null != cachedBytes) {
+      position = pos;
+      return;
+    }
+    ChannelInputStream spooled = pos < position ? spool() : this.spooled;
+    if (null != spooled) {
+      spooled.seek(pos);
+      position = pos;
+      return;
+    }
+    assert null != stream;
+    while (position < pos) {
+      long skipped = stream.skip(pos - position);
+      if (skipped <= 0) throw new EOFException("Unexpected end of blob " + blobId.name() + " at " + position);
+      position += skipped;
+    }
+  }
+
+  @Override
+  public synchronized long getPos() {
+    return position;
+  }
+
+  @Override
+  public boolean seekToNewSource(final long targetPos) {
+    return false;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    checkOpen();
+    return (int) Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    checkOpen();
+    if (position >= length) return -1;
+    final int value;
+    ChannelInputStream spooled = this.spooled;
+    if (null != cachedBytes) {
+      value = cachedBytes[(int) position] & 0xFF;
+    } else if (null != spooled) {
+      value = spooled.read();
+    } else {
+      assert null != stream;
+      value = stream.read();
+    }
+    if (value < 0) return -1;
+    position++;
+    if (null != statistics) statistics.incrementBytesRead(1);
+    return value;
+  }
+
+  @Override
+  public synchronized int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+    return read(ByteBuffer.wrap(b, off, len));
+  }
+
+  @Override
+  public synchronized int read(@Nonnull final ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (!dst.hasRemaining()) return 0;
+    if (position >= length) return -1;
+    final int read;
+    ChannelInputStream spooled = this.spooled;
+    if (null != cachedBytes) {
+      read = (int) Math.min(dst.remaining(), length - position);
+      dst.put(cachedBytes, (int) position, read);
+    } else if (null != spooled) {
+      read = spooled.read(dst);
+    } else {
+      assert null != stream;
+      if (dst.hasArray()) {
+        read = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        if (read > 0) dst.position(dst.position() + read);
+      } else {
+        byte[] bytes = new byte[Math.min(dst.remaining(), ChannelInputStream.DEFAULT_READAHEAD)];
+        read = stream.read(bytes, 0, bytes.length);
+        if (read > 0) dst.put(bytes, 0, read);
+      }
+    }
+    if (read < 0) return -1;
+    position += read;
+    if (null != statistics) statistics.incrementBytesRead(read);
+    return read;
+  }
+
+  @Override
+  public int read(final long position, final byte[] bytes, final int offset, final int length) throws IOException {
+    return read(position, ByteBuffer.wrap(bytes, offset, length));
+  }
+
+  @Override
+  public int read(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (!dst.hasRemaining()) return 0;
+    if (position < 0) throw new EOFException("Cannot read at negative offset " + position);
+    if (position >= length) return -1;
+    final int read;
+    if (null != cachedBytes) {
+      read = (int) Math.min(dst.remaining(), length - position);
+      dst.put(cachedBytes, (int) position, read);
+    } else {
+      ChannelInputStream spooled = this.spooled;
+      read = (null == spooled ? spool() : spooled).read(position, dst);
+    }
+    if (read > 0 && null != statistics) statistics.incrementBytesRead(read);
+    return read;
+  }
+
+  @Override
+  public void readFully(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    long offset = position;
+    while (dst.hasRemaining()) {
+      int read = read(offset, dst);
+      if (read < 0) throw new EOFException("End of blob " + blobId.name() + " reached at " + offset);
+      offset += read;
+    }
+  }
+
+  @Override
+  public synchronized void setReadahead(@Nullable final Long readahead) {
+    this.readahead = readahead;
+    ChannelInputStream spooled = this.spooled;
+    if (null != spooled) spooled.setReadahead(readahead);
+  }
+
+  @Override
+  public boolean hasCapability(final String capability) {
+    switch (capability.toLowerCase(Locale.ENGLISH)) {
+      case StreamCapabilities.READAHEAD:
+      case StreamCapabilities.READBYTEBUFFER:
+      case StreamCapabilities.PREADBYTEBUFFER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      if (null != stream) stream.close();
+      ChannelInputStream spooled = this.spooled;
+      if (null != spooled) spooled.close();
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Nonnull
+  private synchronized ChannelInputStream spool() throws IOException {
+    checkOpen();
+    ChannelInputStream spooled = this.spooled;
+    if (null != spooled) return spooled;
+    if (!spoolDir.isDirectory() && !spoolDir.mkdirs() && !spoolDir.isDirectory()) {
+      throw new IOException("Could not create " + spoolDir.getAbsolutePath());
+    }
+    File file = File.createTempFile(blobId.name() + "-", ".blob", spoolDir);
+    try {
+      try (OutputStream out = new FileOutputStream(file)) {
+        reader.open(blobId, Constants.OBJ_BLOB).copyTo(out);
+      }
+      spooled = new ChannelInputStream(file, null, file::delete);
+    } catch (IOException | RuntimeException e) {
+      file.delete();
+      throw e;
+    }
+    if (null != readahead) spooled.setReadahead(readahead);
+    spooled.seek(position);
+    if (null != stream) {
+      stream.close();
+      stream = null;
+    }
+    this.spooled = spooled;
+    return spooled;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) throw new IOException("Stream closed: " + blobId.name());
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.StreamCapabilities;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Reads a blob held in memory, such as an entry of the {@link BlobCache}. The stream owns a duplicate of the buffer,
+ * so any number of streams share the same bytes without copying them or holding a file descriptor.
+ */
+class ByteBufferInputStream extends FSInputStream implements ByteBufferReadable, ByteBufferPositionedReadable, CanSetReadahead, StreamCapabilities {
+  @Nonnull
+  private final ByteBuffer buffer;
+  @Nullable
+  private final FileSystem.Statistics statistics;
+  private volatile boolean closed = false;
+
+  public ByteBufferInputStream(@Nonnull final ByteBuffer buffer, @Nullable final FileSystem.Statistics statistics) {
+    this.buffer = buffer.duplicate();
+    this.buffer.rewind();
+    this.statistics = statistics;
+  }
+
+  @Override
+  public synchronized void seek(final long pos) throws IOException {
+    checkOpen();
+    if (pos < 0) throw new EOFException("Cannot seek to negative offset " + pos);
+    if (pos > buffer.limit()) throw new EOFException("Cannot seek past end of blob: " + pos + " > " + buffer.limit());
+    buffer.position((int) pos);
+  }
+
+  @Override
+  public synchronized long getPos() {
+    return buffer.position();
+  }
+
+  @Override
+  public boolean seekToNewSource(final long targetPos) {
+    return false;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    checkOpen();
+    return buffer.remaining();
+  }
+
+  @Override
+  public synchronized long skip(final long n) throws IOException {
+    checkOpen();
+    if (n <= 0) return 0;
+    int skipped = (int) Math.min(n, buffer.remaining());
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    checkOpen();
+    if (!buffer.hasRemaining()) return -1;
+    if (null != statistics) statistics.incrementBytesRead(1);
+    return buffer.get() & 0xFF;
+  }
+
+  @Override
+  public synchronized int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+    return read(ByteBuffer.wrap(b, off, len));
+  }
+
+  @Override
+  public synchronized int read(@Nonnull final ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (!dst.hasRemaining()) return 0;
+    if (!buffer.hasRemaining()) return -1;
+    int read = Math.min(dst.remaining(), buffer.remaining());
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(slice.position() + read);
+    dst.put(slice);
+    buffer.position(buffer.position() + read);
+    if (null != statistics) statistics.incrementBytesRead(read);
+    return read;
+  }
+
+  @Override
+  public int read(final long position, final byte[] bytes, final int offset, final int length) throws IOException {
+    return read(position, ByteBuffer.wrap(bytes, offset, length));
+  }
+
+  @Override
+  public int read(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (!dst.hasRemaining()) return 0;
+    if (position < 0) throw new EOFException("Cannot read at negative offset " + position);
+    if (position >= buffer.limit()) return -1;
+    int read = (int) Math.min(dst.remaining(), buffer.limit() - position);
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit((int) position + read).position((int) position);
+    dst.put(slice);
+    if (null != statistics) statistics.incrementBytesRead(read);
+    return read;
+  }
+
+  @Override
+  public void readFully(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    if (position + dst.remaining() > buffer.limit()) throw new EOFException("End of blob reached at " + buffer.limit());
+    read(position, dst);
+  }
+
+  /**
+   * A no-op: the blob is already in memory.
+   */
+  @Override
+  public void setReadahead(@Nullable final Long readahead) {
+  }
+
+  @Override
+  public boolean hasCapability(final String capability) {
+    switch (capability.toLowerCase(Locale.ENGLISH)) {
+      case StreamCapabilities.READAHEAD:
+      case StreamCapabilities.READBYTEBUFFER:
+      case StreamCapabilities.PREADBYTEBUFFER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) throw new IOException("Stream closed");
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.Path;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A file added, modified or deleted between two commits of a mounted branch.
+ */
+public class ChangedPath {
+  @Nonnull
+  private final Type type;
+  @Nonnull
+  private final Path path;
+  @Nonnull
+  private final ObjectId oldId;
+  @Nonnull
+  private final ObjectId newId;
+
+  public ChangedPath(@Nonnull final Type type, @Nonnull final Path path, @Nonnull final ObjectId oldId, @Nonnull final ObjectId newId) {
+    this.type = type;
+    this.path = path;
+    this.oldId = oldId;
+    this.newId = newId;
+  }
+
+  @Nonnull
+  public Type getType() {
+    return type;
+  }
+
+  @Nonnull
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * The blob id before the change, or the zero id for added files.
+   */
+  @Nonnull
+  public ObjectId getOldId() {
+    return oldId;
+  }
+
+  /**
+   * The blob id after the change, or the zero id for deleted files.
+   */
+  @Nonnull
+  public ObjectId getNewId() {
+    return newId;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + path;
+  }
+
+  public enum Type {
+    ADDED,
+    MODIFIED,
+    DELETED
+  }
+}
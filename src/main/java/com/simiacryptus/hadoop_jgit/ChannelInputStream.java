@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.StreamCapabilities;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Reads a local file through a FileChannel. Sequential reads go through a readahead buffer;
+ * positioned reads go straight to the channel without moving the stream position, so they are lock-free.
+ */
+class ChannelInputStream extends FSInputStream implements ByteBufferReadable, ByteBufferPositionedReadable, CanSetReadahead, StreamCapabilities {
+  public static final int DEFAULT_READAHEAD = 64 * 1024;
+  @Nonnull
+  private final File file;
+  @Nonnull
+  private final FileChannel channel;
+  private final long length;
+  @Nullable
+  private final FileSystem.Statistics statistics;
+  @Nullable
+  private final Runnable onClose;
+  @Nonnull
+  private ByteBuffer buffer;
+  private long bufferStart = 0;
+  private long position = 0;
+  private volatile boolean closed = false;
+
+  public ChannelInputStream(@Nonnull final File file, @Nullable final FileSystem.Statistics statistics, @Nullable final Runnable onClose) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.length = channel.size();
+    this.statistics = statistics;
+    this.onClose = onClose;
+    this.buffer = emptyBuffer(DEFAULT_READAHEAD);
+  }
+
+  @Nonnull
+  private static ByteBuffer emptyBuffer(final int capacity) {
+    ByteBuffer buffer = ByteBuffer.allocate(capacity);
+    buffer.limit(0);
+    return buffer;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public synchronized void seek(final long pos) throws IOException {
+    checkOpen();
+    if (pos < 0) throw new EOFException("Cannot seek to negative offset " + pos);
+    if (pos > length) throw new EOFException("Cannot seek past end of file: " + pos + " > " + length);
+    position = pos;
+  }
+
+  @Override
+  public synchronized long getPos() {
+    return position;
+  }
+
+  @Override
+  public boolean seekToNewSource(final long targetPos) {
+    return false;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    checkOpen();
+    return (int) Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  @Override
+  public synchronized long skip(final long n) throws IOException {
+    if (n <= 0) return 0;
+    long target = Math.min(length, position + n);
+    long skipped = target - position;
+    seek(target);
+    return skipped;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    checkOpen();
+    int offset = fill();
+    if (offset < 0) return -1;
+    position++;
+    if (null != statistics) statistics.incrementBytesRead(1);
+    return buffer.get(offset) & 0xFF;
+  }
+
+  @Override
+  public synchronized int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+    return read(ByteBuffer.wrap(b, off, len));
+  }
+
+  @Override
+  public synchronized int read(@Nonnull final ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (!dst.hasRemaining()) return 0;
+    if (position >= length) return -1;
+    int read;
+    if (bufferOffset() < 0 && dst.remaining() >= buffer.capacity()) {
+      read = channel.read(dst, position);
+      if (read < 0) return -1;
+    } else {
+      int offset = fill();
+      if (offset < 0) return -1;
+      read = Math.min(dst.remaining(), buffer.limit() - offset);
+      ByteBuffer slice = buffer.duplicate();
+      slice.position(offset);
+      slice.limit(offset + read);
+      dst.put(slice);
+    }
+    position += read;
+    if (null != statistics) statistics.incrementBytesRead(read);
+    return read;
+  }
+
+  @Override
+  public int read(final long position, final byte[] bytes, final int offset, final int length) throws IOException {
+    return read(position, ByteBuffer.wrap(bytes, offset, length));
+  }
+
+  @Override
+  public int read(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    checkOpen();
+    if (!dst.hasRemaining()) return 0;
+    if (position >= length) return -1;
+    int read = channel.read(dst, position);
+    if (read > 0 && null != statistics) statistics.incrementBytesRead(read);
+    return read;
+  }
+
+  @Override
+  public void readFully(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    long offset = position;
+    while (dst.hasRemaining()) {
+      int read = read(offset, dst);
+      if (read < 0) throw new EOFException("End of file " + file + " reached at " + offset);
+      offset += read;
+    }
+  }
+
+  @Override
+  public synchronized void setReadahead(@Nullable final Long readahead) {
+    int capacity = null == readahead ? DEFAULT_READAHEAD : (int) Math.max(1, Math.min(Integer.MAX_VALUE, readahead));
+    if (capacity != buffer.capacity()) buffer = emptyBuffer(capacity);
+  }
+
+  @Override
+  public boolean hasCapability(final String capability) {
+    switch (capability.toLowerCase(Locale.ENGLISH)) {
+      case StreamCapabilities.READAHEAD:
+      case StreamCapabilities.READBYTEBUFFER:
+      case StreamCapabilities.PREADBYTEBUFFER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      channel.close();
+    } finally {
+      if (null != onClose) onClose.run();
+    }
+  }
+
+  private int bufferOffset() {
+    long offset = position - bufferStart;
+    return offset >= 0 && offset < buffer.limit() ? (int) offset : -1;
+  }
+
+  /**
+   * Makes the byte at the current position available in the buffer, returning its offset, or -1 at end of file.
+   */
+  private int fill() throws IOException {
+    int offset = bufferOffset();
+    if (offset >= 0) return offset;
+    if (position >= length) return -1;
+    buffer.clear();
+    bufferStart = position;
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, bufferStart + buffer.position()) <= 0) break;
+    }
+    buffer.flip();
+    return buffer.limit() > 0 ? 0 : -1;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) throw new IOException("Stream closed: " + file);
+  }
+}
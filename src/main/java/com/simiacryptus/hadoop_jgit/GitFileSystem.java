@@ -20,26 +20,48 @@
 package com.simiacryptus.hadoop_jgit;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.impl.AbstractFSBuilderImpl;
+import org.apache.hadoop.fs.impl.OpenFileParameters;
+import org.apache.hadoop.util.StringUtils;
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class GitFileSystem extends ProxyFileSystem {
   private static final Logger logger = LoggerFactory.getLogger(GitFileSystem.class);
-  private static final Map<String, GitRepoFileSystem> cache = new HashMap<>();
-  private static final Map<String, ScheduledFuture<?>> pollingTasks = new HashMap<>();
-  private static final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder().setDaemon(true).build());
+  private static final ConcurrentHashMap<String, CompletableFuture<GitRepoFileSystem>> cache = new ConcurrentHashMap<>();
+  private static final List<PullListener> pullListeners = new CopyOnWriteArrayList<>();
+  private static volatile RefreshScheduler refreshScheduler;
+  private static volatile ExecutorService openExecutor;
+  @Nullable
+  private static volatile BlobCache blobCache;
+  private static volatile boolean blobCacheConfigured = false;
+  private static volatile Route[] routes = new Route[0];
+  private static final Object evictionLock = new Object();
+  private volatile String remoteScheme;
 
   public GitFileSystem() {
     statistics = new Statistics("");
@@ -49,6 +71,148 @@ public class GitFileSystem extends ProxyFileSystem {
     return statistics;
   }
 
+  @Nonnull
+  public String getRemoteScheme() {
+    String scheme = remoteScheme;
+    if (null == scheme) {
+      scheme = getProperty("fs.jgit.remote.scheme", "https").toString();
+      remoteScheme = scheme;
+    }
+    return scheme;
+  }
+
+  @Nonnull
+  RefreshScheduler getRefreshScheduler() {
+    RefreshScheduler scheduler = refreshScheduler;
+    if (null != scheduler) return scheduler;
+    synchronized (GitFileSystem.class) {
+      if (null == refreshScheduler) {
+        int threads = Integer.parseInt(getProperty("fs.jgit.refresh.threads", Integer.toString(4)).toString());
+        double jitter = Double.parseDouble(getProperty("fs.jgit.refresh.jitter", Double.toString(0.1)).toString());
+        double maxBackoff = Double.parseDouble(getProperty("fs.jgit.refresh.backoff.max", Double.toString(300)).toString());
+        refreshScheduler = new RefreshScheduler(threads, jitter, maxBackoff);
+        SchedulerStatistics.register(refreshScheduler, Boolean.parseBoolean(getProperty("fs.jgit.metrics.publish", Boolean.toString(true)).toString()));
+      }
+      return refreshScheduler;
+    }
+  }
+
+  @Nonnull
+  ExecutorService getOpenExecutor() {
+    ExecutorService executor = openExecutor;
+    if (null != executor) return executor;
+    synchronized (GitFileSystem.class) {
+      if (null == openExecutor) {
+        int threads = Integer.parseInt(getProperty("fs.jgit.open.threads", Integer.toString(16)).toString());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jgit-open-%d").build());
+        pool.allowCoreThreadTimeOut(true);
+        openExecutor = pool;
+      }
+      return openExecutor;
+    }
+  }
+
+  /**
+   * The blob cache shared by all instances, sized by the configuration of the first instance to ask for it,
+   * or null if fs.jgit.cache.size is 0.
+   */
+  @Nullable
+  BlobCache getBlobCache() {
+    if (blobCacheConfigured) return blobCache;
+    synchronized (GitFileSystem.class) {
+      if (!blobCacheConfigured) {
+        long size = StringUtils.TraditionalBinaryPrefix.string2long(getProperty("fs.jgit.cache.size", "64m").toString());
+        long maxBlobSize = StringUtils.TraditionalBinaryPrefix.string2long(getProperty("fs.jgit.cache.blob.max", "1m").toString());
+        if (size > 0 && maxBlobSize > 0) blobCache = new BlobCache(size, maxBlobSize);
+        blobCacheConfigured = true;
+      }
+      return blobCache;
+    }
+  }
+
+  /**
+   * Opens the file on a bounded pool shared by all instances, so a caller can have many opens in flight at once,
+   * including ones that wait for a mount or a foreground fetch. No mandatory options are supported.
+   */
+  @Override
+  protected CompletableFuture<FSDataInputStream> openFileWithOptions(@Nonnull final Path path, @Nonnull final OpenFileParameters parameters) throws IOException {
+    AbstractFSBuilderImpl.rejectUnknownMandatoryKeys(parameters.getMandatoryKeys(), Collections.emptySet(), "for " + path);
+    CompletableFuture<FSDataInputStream> future = new CompletableFuture<>();
+    getOpenExecutor().execute(() -> {
+      try {
+        future.complete(open(path, parameters.getBufferSize()));
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Registers a listener notified after any mounted branch moves to a new commit.
+   */
+  public static void addPullListener(@Nonnull final PullListener listener) {
+    pullListeners.add(listener);
+  }
+
+  public static void removePullListener(@Nonnull final PullListener listener) {
+    pullListeners.remove(listener);
+  }
+
+  static void firePulled(@Nonnull final GitRepoFileSystem fileSystem, @Nullable final ObjectId previous, @Nonnull final ObjectId current) {
+    if (pullListeners.isEmpty()) return;
+    Path root = fileSystem.toGitPath("");
+    final List<ChangedPath> changes;
+    try {
+      changes = Collections.unmodifiableList(fileSystem.listChanges(root, previous, current));
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not list changes of " + root, e);
+      return;
+    }
+    for (PullListener listener : pullListeners) {
+      try {
+        listener.pulled(root, previous, current, changes);
+      } catch (RuntimeException e) {
+        logger.warn("Pull listener failed for " + root, e);
+      }
+    }
+  }
+
+  /**
+   * Files below the path changed since the given revision, up to the commit the mount currently serves.
+   */
+  @Nonnull
+  public List<ChangedPath> listChanges(@Nonnull final Path f, @Nonnull final String since) throws IOException {
+    return listChanges(f, since, null);
+  }
+
+  /**
+   * Files below the path changed between two revisions of its branch; a null to means the current commit.
+   */
+  @Nonnull
+  public List<ChangedPath> listChanges(@Nonnull final Path f, @Nullable final String from, @Nullable final String to) throws IOException {
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.listChanges(filter(f), from, to);
+    } finally {
+      fs.release();
+    }
+  }
+
+  /**
+   * Statistics of the mount serving the given path, mounting it if necessary.
+   */
+  @Nonnull
+  public MountStatistics getMountStatistics(@Nonnull final Path f) {
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.getMountStatistics();
+    } finally {
+      fs.release();
+    }
+  }
+
   @Nonnull
   @Override
   public URI getUri() {
@@ -62,42 +226,183 @@ public class GitFileSystem extends ProxyFileSystem {
   @Override
   protected GitRepoFileSystem route(@Nonnull final Path f) {
     URI uri = f.toUri();
-    ParsePath parsePath = new ParsePath(f.toString()).invoke();
-    String basePath = String.format("https://%s/%s%s/", uri.getRawAuthority(), parsePath.getRepoPath(), parsePath.getRepoBranch());
+    String path = null == uri.getPath() ? "" : uri.getPath();
+    String authority = null == uri.getRawAuthority() ? "" : uri.getRawAuthority();
+    String scheme = getRemoteScheme();
+    int prefixLength = ParsePath.prefixLength(path);
+    final String basePath;
+    if (prefixLength < 0) {
+      ParsePath parsePath = ParsePath.ofPath(path);
+      basePath = String.format("%s://%s/%s%s/", scheme, authority, parsePath.getRepoPath(), parsePath.getRepoBranch());
+    } else {
+      basePath = new StringBuilder(scheme.length() + authority.length() + prefixLength + 4)
+          .append(scheme).append("://").append(authority).append(path, 0, prefixLength).append('/').toString();
+    }
 //      String basePath = String.format("git@%s:%s%s/", uri.getRawAuthority(), parsePath.getRepoPath(), parsePath.getRepoBranch());
-    return cache.computeIfAbsent(basePath, path -> {
+    while (true) {
+      CompletableFuture<GitRepoFileSystem> future = cache.get(basePath);
+      if (null == future) {
+        CompletableFuture<GitRepoFileSystem> newFuture = new CompletableFuture<>();
+        future = cache.putIfAbsent(basePath, newFuture);
+        if (null == future) {
+          future = newFuture;
+          mount(basePath, new Route(basePath, newFuture));
+        }
+      }
+      final GitRepoFileSystem gitRepoFileSystem;
       try {
-        GitRepoFileSystem gitRepoFileSystem = new GitRepoFileSystem(path, GitFileSystem.this);
-        gitRepoFileSystem.touch();
-        pollingTasks.put(basePath, scheduledExecutorService.scheduleAtFixedRate(() -> {
-          if (gitRepoFileSystem.secondsSinceFetch() > gitRepoFileSystem.getEagerPullPeriod()) {
-            try {
-              gitRepoFileSystem.pull();
-            } catch (IOException e) {
-              logger.warn("Error pulling update for " + basePath, e);
-            }
-          } else if (gitRepoFileSystem.secondsSinceTouch() > gitRepoFileSystem.getDismountPeriod()) {
-            if (gitRepoFileSystem.isDismountDelete()) {
-              gitRepoFileSystem.getGitDir().delete();
-            }
-            cache.remove(basePath);
-            pollingTasks.remove(basePath).cancel(false);
-          }
-        }, 1, 1, TimeUnit.SECONDS));
-        return gitRepoFileSystem;
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      } catch (URISyntaxException e) {
-        throw new RuntimeException(e);
+        gitRepoFileSystem = future.join();
+      } catch (CompletionException e) {
+        cache.remove(basePath, future);
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new RuntimeException(cause);
       }
-    });
+      if (gitRepoFileSystem.retain()) return touch(gitRepoFileSystem);
+      cache.remove(basePath, future);
+    }
   }
 
+  /**
+   * Touches a mount the caller has just retained, dropping that reference again if the touch fails
+   * (e.g. a blocking pull from an unreachable remote), so the mount can still be dismounted.
+   */
+  @Nonnull
+  private static GitRepoFileSystem touch(@Nonnull final GitRepoFileSystem gitRepoFileSystem) {
+    try {
+      gitRepoFileSystem.touch();
+    } catch (Throwable e) {
+      gitRepoFileSystem.release();
+      throw e;
+    }
+    return gitRepoFileSystem;
+  }
+
+  private void mount(@Nonnull final String basePath, @Nonnull final Route route) {
+    final CompletableFuture<GitRepoFileSystem> future = route.future;
+    final GitRepoFileSystem gitRepoFileSystem;
+    try {
+      gitRepoFileSystem = new GitRepoFileSystem(basePath, GitFileSystem.this);
+    } catch (Throwable e) {
+      cache.remove(basePath, future);
+      future.completeExceptionally(e);
+      return;
+    }
+    String remote = gitRepoFileSystem.getRemote().getUri();
+    RefreshScheduler.Task refreshTask = getRefreshScheduler().schedule(remote, gitRepoFileSystem,
+        () -> evict(route, gitRepoFileSystem, gitRepoFileSystem.isDismountDelete() && !gitRepoFileSystem.isShared(), false));
+    gitRepoFileSystem.setRefreshTask(refreshTask);
+    if (gitRepoFileSystem.isRestored() && !gitRepoFileSystem.isPinned()) refreshTask.expedite();
+    future.complete(gitRepoFileSystem);
+    addRoute(route);
+    gitRepoFileSystem.notifyPulled();
+    enforceLimits(gitRepoFileSystem);
+  }
+
+  /**
+   * Dismounts an idle mount and unregisters it, optionally deleting its files. Callers routing to the same
+   * branch meanwhile wait on a placeholder, so a remount never sees a half-deleted directory.
+   */
+  private static boolean evict(@Nonnull final Route route, @Nonnull final GitRepoFileSystem gitRepoFileSystem, final boolean delete, final boolean evicted) {
+    synchronized (gitRepoFileSystem) {
+      if (!gitRepoFileSystem.dismount(delete, evicted)) return false;
+    }
+    logger.debug("Dismounted " + route.basePath);
+    CompletableFuture<GitRepoFileSystem> placeholder = new CompletableFuture<>();
+    cache.replace(route.basePath, route.future, placeholder);
+    removeRoute(route);
+    try {
+      if (delete) FileUtil.fullyDelete(gitRepoFileSystem.getGitDir());
+    } finally {
+      cache.remove(route.basePath, placeholder);
+      placeholder.complete(gitRepoFileSystem);
+    }
+    return true;
+  }
+
+  /**
+   * Evicts and deletes idle mounts, least recently used first, until the disk budget and repository cap
+   * configured for the given mount are met. Mounts in use are skipped, as is the given mount itself.
+   */
+  static void enforceLimits(@Nonnull final GitRepoFileSystem current) {
+    long budget = current.getDiskBudget();
+    int maxRepositories = current.getMaxRepositories();
+    if (budget <= 0 && maxRepositories <= 0) return;
+    synchronized (evictionLock) {
+      if (!isOverLimits(budget, maxRepositories)) return;
+      List<Map.Entry<Long, Route>> candidates = new ArrayList<>();
+      for (Route route : routes) {
+        GitRepoFileSystem gitRepoFileSystem = route.future.getNow(null);
+        if (null != gitRepoFileSystem && gitRepoFileSystem != current) {
+          candidates.add(new AbstractMap.SimpleImmutableEntry<>(gitRepoFileSystem.getLastTouch(), route));
+        }
+      }
+      candidates.sort(Map.Entry.comparingByKey());
+      for (Map.Entry<Long, Route> candidate : candidates) {
+        Route route = candidate.getValue();
+        GitRepoFileSystem gitRepoFileSystem = route.future.getNow(null);
+        if (null == gitRepoFileSystem || gitRepoFileSystem.isShared() || !evict(route, gitRepoFileSystem, true, true)) continue;
+        logger.info(String.format("Evicted %s to meet disk budget %d and repository limit %d", route.basePath, budget, maxRepositories));
+        if (!isOverLimits(budget, maxRepositories)) return;
+      }
+      logger.debug(String.format("No idle mounts left to evict; using %d bytes in %d repositories", getDiskUsage(), RemoteRepository.openCount()));
+    }
+  }
+
+  private static boolean isOverLimits(final long budget, final int maxRepositories) {
+    return (budget > 0 && getDiskUsage() > budget) || (maxRepositories > 0 && RemoteRepository.openCount() > maxRepositories);
+  }
+
+  /**
+   * Bytes used under the data directory by open remotes and current mounts, as last measured.
+   */
+  public static long getDiskUsage() {
+    long total = RemoteRepository.totalDiskUsage();
+    for (Route route : routes) {
+      GitRepoFileSystem gitRepoFileSystem = route.future.getNow(null);
+      if (null != gitRepoFileSystem) total += gitRepoFileSystem.getDiskUsage();
+    }
+    return total;
+  }
+
+  private static void addRoute(@Nonnull final Route route) {
+    synchronized (cache) {
+      Route[] next = Arrays.copyOf(routes, routes.length + 1);
+      next[routes.length] = route;
+      routes = next;
+    }
+  }
+
+  private static void removeRoute(@Nonnull final Route route) {
+    synchronized (cache) {
+      List<Route> next = new ArrayList<>(Arrays.asList(routes));
+      next.remove(route);
+      routes = next.toArray(new Route[0]);
+    }
+  }
+
+  /**
+   * Paths are passed to mounts unchanged, since a mount resolves files from the path component alone.
+   */
   @Nonnull
   @Override
   protected Path filter(@Nonnull final Path f) {
-    URI uri = f.toUri();
-    return new Path("https", uri.getRawAuthority(), uri.getRawPath());
+    return f;
+  }
+
+  /**
+   * A mounted branch, as listed for eviction and disk accounting; paths are routed through the cache by base path.
+   */
+  private static class Route {
+    @Nonnull
+    private final String basePath;
+    @Nonnull
+    private final CompletableFuture<GitRepoFileSystem> future;
+
+    private Route(@Nonnull final String basePath, @Nonnull final CompletableFuture<GitRepoFileSystem> future) {
+      this.basePath = basePath;
+      this.future = future;
+    }
   }
 
 
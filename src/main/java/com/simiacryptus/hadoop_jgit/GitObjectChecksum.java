@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.FileChecksum;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nonnull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The Git object id of a file or directory, as stored in the tree: the blob id of a file's content, the tree id
+ * of a directory, or the commit id of a submodule. Equal checksums mean equal content, whatever the path or branch.
+ */
+public class GitObjectChecksum extends FileChecksum {
+  @Nonnull
+  private String algorithmName;
+  @Nonnull
+  private ObjectId objectId;
+
+  public GitObjectChecksum() {
+    this(Constants.OBJ_BLOB, ObjectId.zeroId());
+  }
+
+  public GitObjectChecksum(final int objectType, @Nonnull final ObjectId objectId) {
+    this.algorithmName = "GIT-SHA1-" + Constants.typeString(objectType).toUpperCase(Locale.ENGLISH);
+    this.objectId = objectId;
+  }
+
+  @Nonnull
+  public ObjectId getObjectId() {
+    return objectId;
+  }
+
+  @Override
+  public String getAlgorithmName() {
+    return algorithmName;
+  }
+
+  @Override
+  public int getLength() {
+    return Constants.OBJECT_ID_LENGTH;
+  }
+
+  @Override
+  public byte[] getBytes() {
+    byte[] bytes = new byte[Constants.OBJECT_ID_LENGTH];
+    objectId.copyRawTo(bytes, 0);
+    return bytes;
+  }
+
+  @Override
+  public void write(final DataOutput out) throws IOException {
+    out.writeUTF(algorithmName);
+    out.write(getBytes());
+  }
+
+  @Override
+  public void readFields(final DataInput in) throws IOException {
+    algorithmName = in.readUTF();
+    byte[] bytes = new byte[Constants.OBJECT_ID_LENGTH];
+    in.readFully(bytes);
+    objectId = ObjectId.fromRaw(bytes);
+  }
+
+  @Override
+  public String toString() {
+    return algorithmName + ":" + objectId.name();
+  }
+}
@@ -20,59 +20,154 @@
 package com.simiacryptus.hadoop_jgit;
 
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.RawLocalFileSystem;
-import org.eclipse.jgit.dircache.DirCache;
-import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.StringUtils;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 public class GitRepoFileSystem extends ReadOnlyFileSystem {
   private static final Logger logger = LoggerFactory.getLogger(GitRepoFileSystem.class);
   @Nonnull
   private final File gitDir;
-  private final Repository repository;
   @Nonnull
-  private final RemoteConfig remoteConfig;
+  private final RemoteRepository remote;
+  @Nullable
+  private final CredentialsProvider credentials;
+  @Nonnull
+  private final MountStatistics mountStatistics;
   @Nonnull
   private final ParsePath parsedPath;
   @Nonnull
-  private final RawLocalFileSystem innerFS;
+  private final File snapshotsDir;
+  @Nonnull
+  private final File spoolDir;
   @Nonnull
-  private final URI localBase;
+  private final File manifestFile;
+  @Nonnull
+  private final RefreshLease lease;
+  @Nullable
+  private final BlobCache blobCache;
   @Nonnull
   private final URI univeralBase;
+  @Nonnull
+  private final Path gitRoot;
   private final double eagerPullPeriod;
   private final double dismountPeriod;
   private final boolean dismountDelete;
   private final double lazyPullPeriod;
-  private long lastTouch = 0;
-  private long lastFetch = 0;
+  private final boolean asyncPull;
+  private final double maxStaleness;
+  private final boolean restore;
+  private final boolean shared;
+  private final double leasePeriod;
+  private final boolean worktree;
+  private final boolean sparse;
+  @Nonnull
+  private final List<String> sparsePaths;
+  private final long streamThreshold;
+  private final int historyDepth;
+  private final double advertisementTtl;
+  private final long blockSize;
+  private final long diskBudget;
+  private final int maintenancePacks;
+  private final int maintenanceLoose;
+  private final double maintenanceInterval;
+  private final long maintenanceRate;
+  private final double maintenancePackExpire;
+  private final int maxRepositories;
+  @Nonnull
+  private final FilterSpec fetchFilter;
+  private final AtomicInteger references = new AtomicInteger(0);
+  private final AtomicLong noOpRefreshes = new AtomicLong(0);
+  private final AtomicLong changedRefreshes = new AtomicLong(0);
+  private final Queue<Map.Entry<ObjectId, ObjectId>> pulled = new ConcurrentLinkedQueue<>();
+  private volatile long lastTouch = 0;
+  private volatile long lastFetch = 0;
+  private volatile long lastRefresh = 0;
+  private volatile long diskUsage = 0;
+  private volatile boolean restored = false;
+  @Nullable
+  private volatile RefreshScheduler.Task refreshTask;
+  @Nullable
+  private volatile Snapshot snapshot;
 
   public GitRepoFileSystem(String url, @Nonnull final GitFileSystem parent) throws IOException, URISyntaxException {
     setConf(parent.getConf());
     statistics = parent.getStats();
     TimeUnit timeUnit = TimeUnit.SECONDS;
     this.lazyPullPeriod = Double.parseDouble(getProperty("fs.jgit.pull.lazy", Double.toString(timeUnit.toSeconds(5))).toString());
+    this.asyncPull = Boolean.parseBoolean(getProperty("fs.jgit.pull.async", Boolean.toString(false)).toString());
+    this.maxStaleness = Double.parseDouble(getProperty("fs.jgit.pull.maxstale", Double.toString(0)).toString());
     this.eagerPullPeriod = Double.parseDouble(getProperty("fs.jgit.pull.eager", Double.toString(timeUnit.toSeconds(5))).toString());
     this.dismountPeriod = Double.parseDouble(getProperty("fs.jgit.dismount.seconds", Double.toString(timeUnit.toSeconds(60))).toString());
     this.dismountDelete = Boolean.parseBoolean(getProperty("fs.jgit.dismount.delete", Boolean.toString(false)).toString());
+    this.diskBudget = StringUtils.TraditionalBinaryPrefix.string2long(getProperty("fs.jgit.disk.budget", "0").toString());
+    this.maxRepositories = Integer.parseInt(getProperty("fs.jgit.repositories.max", Integer.toString(0)).toString());
+    this.maintenancePacks = Integer.parseInt(getProperty("fs.jgit.gc.packs", Integer.toString(50)).toString());
+    this.maintenanceLoose = Integer.parseInt(getProperty("fs.jgit.gc.loose", Integer.toString(6700)).toString());
+    this.maintenanceInterval = Double.parseDouble(getProperty("fs.jgit.gc.interval", Double.toString(timeUnit.toSeconds(300))).toString());
+    this.maintenanceRate = Long.parseLong(getProperty("fs.jgit.gc.rate", Long.toString(100000)).toString());
+    this.maintenancePackExpire = Double.parseDouble(getProperty("fs.jgit.gc.expire", Double.toString(timeUnit.toSeconds(600))).toString());
+    this.restore = Boolean.parseBoolean(getProperty("fs.jgit.restore", Boolean.toString(true)).toString());
+    this.shared = Boolean.parseBoolean(getProperty("fs.jgit.shared", Boolean.toString(false)).toString());
+    this.leasePeriod = Double.parseDouble(getProperty("fs.jgit.shared.lease", Double.toString(timeUnit.toSeconds(60))).toString());
+    this.worktree = Boolean.parseBoolean(getProperty("fs.jgit.worktree", Boolean.toString(true)).toString());
+    this.sparse = Boolean.parseBoolean(getProperty("fs.jgit.sparse", Boolean.toString(false)).toString());
+    this.sparsePaths = new ArrayList<>();
+    for (String prefix : getProperty("fs.jgit.sparse.paths", "").toString().split(",")) {
+      prefix = prefix.trim().replaceAll("^/+|/+$", "");
+      if (!prefix.isEmpty()) sparsePaths.add(prefix);
+    }
+    this.streamThreshold = Long.parseLong(getProperty("fs.jgit.stream.threshold", Long.toString(8 * 1024 * 1024)).toString());
+    this.historyDepth = Integer.parseInt(getProperty("fs.jgit.history.depth", Integer.toString(1000)).toString());
+    this.advertisementTtl = Double.parseDouble(getProperty("fs.jgit.remote.ttl", Double.toString(1)).toString());
+    String filterLine = getProperty("fs.jgit.fetch.filter", "").toString();
+    this.fetchFilter = filterLine.isEmpty() ? FilterSpec.NO_FILTER : FilterSpec.fromFilterLine(filterLine);
     File dataDirectory = new File(getProperty("fs.jgit.datadir", getProperty("java.io.tmpdir")).toString(), "git");
     dataDirectory.mkdirs();
     logger.debug("Git FS: " + url);
@@ -81,27 +176,41 @@ public class GitRepoFileSystem extends ReadOnlyFileSystem {
     logger.debug("Git Branch: " + getParsedPath().getRepoBranch());
     logger.debug("Git File: " + getParsedPath().getFilePath());
     URIish parsedUrl = new URIish(url);
-    final URIish sourceUrl = new URIish(String.format("%s://%s/%s", parsedUrl.getScheme(), parsedUrl.getHost(), getParsedPath().getRepoPath()));
+    String host = null == parsedUrl.getHost() ? "" : parsedUrl.getHost();
+    final URIish sourceUrl = new URIish(String.format("%s://%s/%s", parsedUrl.getScheme(), host, getParsedPath().getRepoPath()));
     logger.debug("Git Url: " + sourceUrl);
-    this.gitDir = new File(dataDirectory, String.format("%s/%s/%s", parsedUrl.getHost(), getParsedPath().getRepoPath(), getParsedPath().getRepoBranch()));
+    File remoteDir = new File(dataDirectory, String.format("%s/%s", host.isEmpty() ? parsedUrl.getScheme() : host, getParsedPath().getRepoPath()));
+    this.gitDir = new File(remoteDir, getParsedPath().getRepoBranch());
     logger.debug("Temp Git Dir: " + getGitDir().getAbsolutePath());
-    this.repository = new RepositoryBuilder().setWorkTree(getGitDir()).build();
-    if (!getGitDir().exists()) {
-      if (!getGitDir().mkdirs()) {
-        throw new RuntimeException(getGitDir().getAbsolutePath());
-      }
-      getRepository().create(false);
-    }
-    this.remoteConfig = getRemoteConfig(sourceUrl, getRepository().getConfig());
-    pull();
-    this.localBase = this.getGitDir().toPath().toUri();
+    this.snapshotsDir = new File(getGitDir(), "snapshots");
+    this.spoolDir = new File(getGitDir(), "spool");
+    this.manifestFile = new File(getGitDir(), "manifest.properties");
+    this.lease = new RefreshLease(new File(getGitDir(), "refresh.lock"));
+    this.blobCache = parent.getBlobCache();
+    this.credentials = getCredentials();
     this.univeralBase = new URI(sourceUrl.toString()).resolve(getParsedPath().getRepoBranch() + "/");
-    logger.debug("Local Base: " + localBase());
+    this.gitRoot = new Path(new URI("git", gitBase().getRawAuthority(), gitBase().getPath(), null, null));
     logger.debug("Universal Base: " + gitBase());
 
-    this.innerFS = new LocalRepoFileSystem();
-    getInnerFS().setWorkingDirectory(new Path(getGitDir().getAbsolutePath()));
-    getInnerFS().setConf(parent.getConf());
+    this.blockSize = getDefaultBlockSize(gitRoot);
+    this.mountStatistics = MountStatistics.acquire(sourceUrl.toString() + getParsedPath().getRepoBranch() + "/", Boolean.parseBoolean(getProperty("fs.jgit.metrics.publish", Boolean.toString(true)).toString()));
+    try {
+      this.remote = RemoteRepository.acquire(remoteDir, sourceUrl, getParsedPath().getRepoBranch(), mountStatistics);
+    } catch (RuntimeException e) {
+      mountStatistics.release();
+      throw e;
+    }
+    try {
+      this.restored = restore && restore();
+      if (!restored) update();
+    } catch (IOException | RuntimeException e) {
+      lease.close();
+      remote.release(getParsedPath().getRepoBranch(), false);
+      mountStatistics.release();
+      throw e;
+    }
+    this.lastTouch = System.currentTimeMillis();
+    mountStatistics.attach(this);
   }
 
   public double getDismountPeriod() {
@@ -117,9 +226,37 @@ public class GitRepoFileSystem extends ReadOnlyFileSystem {
     return gitDir;
   }
 
+  /**
+   * Bytes used by this mount's checkouts and spool files as of its last change, excluding the shared object database.
+   */
+  public long getDiskUsage() {
+    return diskUsage;
+  }
+
+  public long getDiskBudget() {
+    return diskBudget;
+  }
+
+  public int getMaxRepositories() {
+    return maxRepositories;
+  }
+
+  public long getNoOpRefreshCount() {
+    return noOpRefreshes.get();
+  }
+
+  public long getChangedRefreshCount() {
+    return changedRefreshes.get();
+  }
+
   @Nonnull
-  public RawLocalFileSystem getInnerFS() {
-    return innerFS;
+  public MountStatistics getMountStatistics() {
+    return mountStatistics;
+  }
+
+  @Override
+  public MountStatistics getStorageStatistics() {
+    return mountStatistics;
   }
 
   public long getLastFetch() {
@@ -134,18 +271,46 @@ public class GitRepoFileSystem extends ReadOnlyFileSystem {
     return lazyPullPeriod;
   }
 
+  public boolean isAsyncPull() {
+    return asyncPull;
+  }
+
+  public double getMaxStaleness() {
+    return maxStaleness;
+  }
+
+  public long getLastRefresh() {
+    return lastRefresh;
+  }
+
+  public void setRefreshTask(@Nullable final RefreshScheduler.Task refreshTask) {
+    this.refreshTask = refreshTask;
+  }
+
+  @Nullable
+  public ObjectId getCommitId() {
+    Snapshot snapshot = this.snapshot;
+    return null == snapshot ? null : snapshot.getCommitId();
+  }
+
   @Nonnull
   public ParsePath getParsedPath() {
     return parsedPath;
   }
 
+  @Nonnull
+  public RemoteRepository getRemote() {
+    return remote;
+  }
+
   @Nonnull
   public RemoteConfig getRemoteConfig() {
-    return remoteConfig;
+    return remote.getRemoteConfig();
   }
 
+  @Nonnull
   public Repository getRepository() {
-    return repository;
+    return remote.getRepository();
   }
 
   @Nonnull
@@ -169,69 +334,632 @@ public class GitRepoFileSystem extends ReadOnlyFileSystem {
     return dismountDelete;
   }
 
+  public boolean isWorktree() {
+    return worktree;
+  }
+
+  /**
+   * True if the worktree only holds the files under fs.jgit.sparse.paths and those opened so far.
+   */
+  public boolean isSparse() {
+    return sparse;
+  }
+
+  public long getStreamThreshold() {
+    return streamThreshold;
+  }
+
+  public int getHistoryDepth() {
+    return historyDepth;
+  }
+
+  @Nonnull
+  public FilterSpec getFetchFilter() {
+    return fetchFilter;
+  }
+
+  /**
+   * True for mounts of a tag or commit, which are resolved once and never refreshed.
+   */
+  public boolean isPinned() {
+    return getParsedPath().isPinned();
+  }
+
+  /**
+   * True if the mount's directory is shared with other processes on the node, one of which refreshes it for all.
+   */
+  public boolean isShared() {
+    return shared;
+  }
+
+  public boolean isPartial() {
+    return !fetchFilter.isNoOp();
+  }
+
   @Nonnull
-  public Path toLocalPath(@Nullable final Path path) {
-    if (null == path) return null;
-    return new Path(toLocalUrl(path.toUri()));
+  public Path toGitPath(@Nonnull final String repoPath) {
+    return repoPath.isEmpty() ? gitRoot : new Path(gitRoot, repoPath);
   }
 
   @Nonnull
-  public Path toGitPath(@Nullable final Path path) {
-    if (null == path) return null;
-    URI uri = toGitUrl(path.toUri());
+  public String toRepoPath(@Nonnull final Path path) throws FileNotFoundException {
+    String base = gitBase().getPath();
+    String filePath = path.toUri().getPath();
+    if (filePath.length() == base.length() - 1 && base.startsWith(filePath)) return "";
+    if (!filePath.startsWith(base)) throw new FileNotFoundException(path.toString());
+    int end = filePath.endsWith("/") ? filePath.length() - 1 : filePath.length();
+    return end <= base.length() ? "" : filePath.substring(base.length(), end);
+  }
+
+  public boolean retain() {
+    while (true) {
+      int count = references.get();
+      if (count < 0) return false;
+      if (references.compareAndSet(count, count + 1)) return true;
+    }
+  }
+
+  public void release() {
+    if (references.decrementAndGet() < 0) throw new IllegalStateException("Released dismounted filesystem " + gitBase());
+  }
+
+  public boolean isDismounted() {
+    return references.get() < 0;
+  }
+
+  /**
+   * Dismounts if no caller holds a reference. With delete, the shared remote directory is removed as well
+   * when this was its last mount. Evicted dismounts are also counted as evictions.
+   */
+  public boolean dismount(final boolean delete, final boolean evicted) {
+    if (!references.compareAndSet(0, -1)) return false;
+    if (!delete) writeManifest();
+    Snapshot snapshot = this.snapshot;
+    if (null != snapshot) snapshot.abandon();
+    lease.close();
+    remote.release(getParsedPath().getRepoBranch(), delete);
+    mountStatistics.detach(this, evicted);
+    return true;
+  }
+
+  /**
+   * Queues maintenance of the shared object database if it is due; never blocks.
+   */
+  public void maintain() {
+    remote.maintain(maintenancePacks, maintenanceLoose, maintenanceInterval, maintenanceRate, maintenancePackExpire, mountStatistics);
+  }
+
+  public void pull() throws IOException {
     try {
-      return new Path(new URI(uri.toString().replaceAll("^https?", "git")));
-    } catch (URISyntaxException e) {
-      throw new RuntimeException(e);
+      update();
+    } finally {
+      notifyPulled();
+    }
+  }
+
+  private synchronized void update() throws IOException {
+    long start = System.currentTimeMillis();
+    this.lastFetch = start;
+    if (isShared() && !isPinned() && !lease.tryAcquire() && follow()) return;
+    ObjectId previous = getCommitId();
+    refresh();
+    this.lastRefresh = start;
+    ObjectId current = getCommitId();
+    if (isShared() || (null != current && !current.equals(previous))) writeManifest();
+    Snapshot snapshot = this.snapshot;
+    if (isShared() && lease.isHeld() && null != snapshot && isWorktree()) Snapshot.sweep(snapshotsDir, snapshot, (long) (leasePeriod * 1000));
+  }
+
+  /**
+   * Adopts the commit published by the process holding this mount's refresh lease instead of contacting the remote.
+   * Returns false if there is no usable manifest or the holder has not renewed it within fs.jgit.shared.lease,
+   * in which case the caller refreshes from the remote itself.
+   */
+  private boolean follow() throws IOException {
+    long deadline = System.currentTimeMillis() + (long) (leasePeriod * 1000);
+    Manifest manifest = Manifest.read(manifestFile);
+    while (null == manifest && System.currentTimeMillis() < deadline && !lease.tryAcquire()) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for " + manifestFile.getAbsolutePath());
+      }
+      manifest = Manifest.read(manifestFile);
+    }
+    if (null == manifest || lease.isHeld() || !manifest.matches(remote.getUri(), getParsedPath().getRepoBranch())) return false;
+    if (System.currentTimeMillis() - manifest.getLastRefresh() > leasePeriod * 1000) {
+      logger.warn(String.format("Refresh lease of %s held by %s has not been renewed since %tc", gitBase(), lease.getHolder(), manifest.getLastRefresh()));
+      return false;
+    }
+    Snapshot previous = this.snapshot;
+    if (null != previous && previous.getCommitId().equals(manifest.getCommitId())) {
+      noOpRefreshes.incrementAndGet();
+      mountStatistics.refreshed(false);
+    } else {
+      if (!getRepository().getObjectDatabase().has(manifest.getCommitId())) return false;
+      changedRefreshes.incrementAndGet();
+      mountStatistics.refreshed(true);
+      install(resolveCommit(getRepository(), manifest.getCommitId()), previous, null, null == previous ? null : previous.getCommitId());
+    }
+    this.lastRefresh = manifest.getLastRefresh();
+    return true;
+  }
+
+  /**
+   * True if the first snapshot was restored from disk rather than pulled, and so still needs revalidating.
+   */
+  public boolean isRestored() {
+    return restored;
+  }
+
+  private void refresh() throws IOException {
+    CharSequence branch = getParsedPath().getRepoBranch();
+    Snapshot previous = this.snapshot;
+    final RevCommit commit;
+    if (isPinned()) {
+      if (null != previous) {
+        noOpRefreshes.incrementAndGet();
+        mountStatistics.refreshed(false);
+        return;
+      }
+      commit = resolveCommit(getRepository(), remote.fetchRevision(getParsedPath().getRevision(), credentials, getFetchFilter(), mountStatistics));
+    } else {
+      Ref advertisedRef = findRef(remote.lsRemote(getParsedPath().getRepoBranch(), credentials, (long) (advertisementTtl * 1000), mountStatistics).values(), branch);
+      ObjectId advertised = null == advertisedRef ? null : advertisedRef.getObjectId();
+      if (null != advertised && null != previous && previous.getCommitId().equals(advertised)) {
+        noOpRefreshes.incrementAndGet();
+        mountStatistics.refreshed(false);
+        return;
+      }
+      if (null != advertised && getRepository().getObjectDatabase().has(advertised)) {
+        commit = resolveCommit(getRepository(), advertised);
+      } else {
+        Ref ref = findRef(remote.fetch(getParsedPath().getRepoBranch(), credentials, getFetchFilter(), advertised, mountStatistics).values(), branch);
+        commit = null == ref ? null : resolveCommit(getRepository(), ref.getObjectId());
+      }
+    }
+    if (null == commit) return;
+    if (null != previous && previous.getCommitId().equals(commit)) {
+      noOpRefreshes.incrementAndGet();
+      mountStatistics.refreshed(false);
+      return;
+    }
+    changedRefreshes.incrementAndGet();
+    mountStatistics.refreshed(true);
+    remote.updateRef(getParsedPath().getRepoBranch(), commit);
+    install(commit, previous, null, null == previous ? null : previous.getCommitId());
+  }
+
+  /**
+   * Builds and swaps in the snapshot of a commit already in the local object database.
+   *
+   * @param seed   a checkout left by an earlier mount to hard link unchanged files from when there is no previous snapshot
+   * @param served the commit served before, as reported to pull listeners; no notification is queued if it is unchanged
+   */
+  private void install(@Nonnull final RevCommit commit, @Nullable final Snapshot previous, @Nullable final File seed, @Nullable final ObjectId served) throws IOException {
+    final Snapshot next;
+    long start = System.currentTimeMillis();
+    try (ObjectReader reader = getRepository().newObjectReader()) {
+      TreeIndex index = TreeIndex.build(reader, commit, null == previous ? null : previous.getIndex(), isPartial());
+      if (isWorktree() && isPartial() && !isSparse()) resolve(index.unresolved());
+      if (getHistoryDepth() > 0) {
+        HistoryIndex previousHistory = null == previous ? null : previous.getIndex().getHistory();
+        index = index.withHistory(HistoryIndex.build(reader, commit, index, previousHistory, getHistoryDepth()));
+      }
+      File worktree = null;
+      Set<String> materialized = null;
+      RefreshLease owner = null;
+      if (isWorktree()) {
+        Snapshot source = null == previous && null != seed && seed.isDirectory() ? new Snapshot(index, seed, true, null, null) : previous;
+        File target = Snapshot.directory(snapshotsDir, commit, isSparse(), isShared());
+        if (!isShared()) owner = Snapshot.claim(target);
+        try {
+          if (isSparse()) {
+            List<TreeIndex.Entry> entries = Snapshot.sparseEntries(index, previous, sparsePaths);
+            resolve(entries);
+            materialized = ConcurrentHashMap.newKeySet();
+            worktree = Snapshot.checkoutSparse(reader, index, entries, source, target, materialized);
+          } else {
+            worktree = Snapshot.checkout(reader, index, source, target, isShared());
+          }
+        } catch (IOException | RuntimeException e) {
+          if (null != owner) Snapshot.discard(target, owner);
+          throw e;
+        }
+      }
+      next = new Snapshot(index, worktree, isShared(), materialized, owner);
+    }
+    mountStatistics.checkedOut(System.currentTimeMillis() - start);
+    this.snapshot = next;
+    if (null != previous) {
+      previous.supersede();
+      previous.release();
+    } else if (isWorktree() && !isShared()) {
+      Snapshot.reclaim(snapshotsDir);
+    }
+    if (getDiskBudget() > 0) measureDiskUsage();
+    if (!next.getCommitId().equals(served)) pulled.add(new AbstractMap.SimpleImmutableEntry<>(served, next.getCommitId()));
+  }
+
+  /**
+   * Notifies pull listeners of the commits installed since the last call, in order. Called once the new snapshot is
+   * served and outside the mount's lock, so a listener that blocks or reads the mount cannot stall or deadlock it.
+   */
+  void notifyPulled() {
+    synchronized (pulled) {
+      for (Map.Entry<ObjectId, ObjectId> move = pulled.poll(); null != move; move = pulled.poll()) {
+        GitFileSystem.firePulled(this, move.getKey(), move.getValue());
+      }
+    }
+  }
+
+  /**
+   * Walks the mount's checkouts and spool files. This takes time proportional to the checkout, so it is only done when
+   * fs.jgit.disk.budget needs the figure; a failure keeps the last figure rather than failing a pull already applied.
+   */
+  private void measureDiskUsage() {
+    try {
+      this.diskUsage = DiskUsage.measure(getGitDir());
+    } catch (RuntimeException e) {
+      logger.warn("Could not measure disk usage of " + getGitDir().getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Serves the snapshot recorded by an earlier process without contacting the remote, provided its commit is still
+   * in the local object database. The indexes are rebuilt from the object database and the files of the recorded
+   * checkout are reused; lastRefresh is carried over so fs.jgit.pull.maxstale still applies.
+   */
+  private boolean restore() {
+    Manifest manifest = Manifest.read(manifestFile);
+    if (null == manifest || !manifest.matches(remote.getUri(), getParsedPath().getRepoBranch())) return false;
+    try {
+      if (!getRepository().getObjectDatabase().has(manifest.getCommitId())) return false;
+      long start = System.currentTimeMillis();
+      install(resolveCommit(getRepository(), manifest.getCommitId()), null, manifest.getWorktree(), manifest.getCommitId());
+      this.lastFetch = start;
+      this.lastRefresh = manifest.getLastRefresh();
+      logger.info(String.format("Restored %s at %s in %d ms", gitBase(), manifest.getCommitId().name(), System.currentTimeMillis() - start));
+      return true;
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not restore " + gitBase() + " from " + manifestFile.getAbsolutePath(), e);
+      return false;
+    }
+  }
+
+  private void writeManifest() {
+    Snapshot snapshot = this.snapshot;
+    if (null == snapshot) return;
+    try {
+      new Manifest(remote.getUri(), getParsedPath().getRepoBranch(), snapshot.getCommitId(), snapshot.getWorktree(), lastFetch, lastRefresh).write(manifestFile);
+    } catch (IOException e) {
+      logger.warn("Could not write " + manifestFile.getAbsolutePath(), e);
     }
   }
 
+  /**
+   * Files below the path that differ between two revisions, or since a revision when to is null.
+   * Revisions are commit ids or names resolvable in the local repository, where HEAD (or @) and the mounted branch's
+   * name stand for the commit the mount serves, so HEAD~1 is its parent; a null from stands for the empty tree.
+   */
   @Nonnull
-  public URI toLocalUrl(@Nullable final URI path) {
-    if (null == path) return null;
-    URI relativized = localBase().resolve(gitBase().relativize(path));
-    logger.debug(String.format("Converted %s to %s", path, relativized));
-    return relativized;
+  public List<ChangedPath> listChanges(final Path f, @Nullable final String from, @Nullable final String to) throws IOException {
+    ObjectId current = getCommitId();
+    if (null == to && null == current) throw new IOException("No commit checked out for " + gitBase());
+    return listChanges(f, null == from ? null : resolveRevision(from, current), null == to ? current : resolveRevision(to, current));
   }
 
+  /**
+   * Files below the path that differ between two commits. Both trees are walked together, so subtrees with
+   * equal ids are skipped without being read.
+   */
   @Nonnull
-  public URI toGitUrl(@Nullable final URI path) {
-    if (null == path) return null;
-    URI relativized = gitBase().resolve(localBase().relativize(path));
-    logger.debug(String.format("Converted %s to %s", path, relativized));
-    return relativized;
+  public List<ChangedPath> listChanges(final Path f, @Nullable final AnyObjectId from, @Nonnull final AnyObjectId to) throws IOException {
+    statistics.incrementReadOps(1);
+    String repoPath = toRepoPath(f);
+    List<ChangedPath> changes = new ArrayList<>();
+    try (RevWalk revWalk = new RevWalk(getRepository()); TreeWalk treeWalk = new TreeWalk(revWalk.getObjectReader())) {
+      if (null == from) treeWalk.addTree(new EmptyTreeIterator());
+      else treeWalk.addTree(revWalk.parseTree(from));
+      treeWalk.addTree(revWalk.parseTree(to));
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(repoPath.isEmpty() ? TreeFilter.ANY_DIFF : AndTreeFilter.create(PathFilterGroup.createFromStrings(repoPath), TreeFilter.ANY_DIFF));
+      for (DiffEntry diff : DiffEntry.scan(treeWalk)) {
+        ObjectId oldId = diff.getOldId().toObjectId();
+        ObjectId newId = diff.getNewId().toObjectId();
+        switch (diff.getChangeType()) {
+          case ADD:
+            changes.add(new ChangedPath(ChangedPath.Type.ADDED, toGitPath(diff.getNewPath()), oldId, newId));
+            break;
+          case DELETE:
+            changes.add(new ChangedPath(ChangedPath.Type.DELETED, toGitPath(diff.getOldPath()), oldId, newId));
+            break;
+          default:
+            changes.add(new ChangedPath(ChangedPath.Type.MODIFIED, toGitPath(diff.getNewPath()), oldId, newId));
+        }
+      }
+    }
+    return changes;
   }
 
-  public void pull() throws IOException {
-    this.lastFetch = System.currentTimeMillis();
-    CharSequence branch = getParsedPath().getRepoBranch();
-    Collection<Ref> fetch = fetch(getRepository(), getRemoteConfig(), branch);
-    checkout(getRepository(), fetch.stream().filter(x -> x.getName().equals("refs/heads/" + branch)).findAny()
-        .orElseGet(() -> fetch.stream().filter(x -> x.getName().equals("HEAD")).findAny().get()));
+  /**
+   * Resolves a revision in the shared object database, whose own HEAD is meaningless, after substituting the current
+   * commit for a leading HEAD, @ or branch name.
+   */
+  @Nonnull
+  private ObjectId resolveRevision(@Nonnull final String revision, @Nullable final ObjectId current) throws IOException {
+    int end = 0;
+    while (end < revision.length() && revision.charAt(end) != '~' && revision.charAt(end) != '^') end++;
+    String base = revision.substring(0, end);
+    final String resolved;
+    if (Constants.HEAD.equals(base) || "@".equals(base) || getParsedPath().getRepoBranch().equals(base)) {
+      if (null == current) throw new IOException("No commit checked out for " + gitBase() + " to resolve " + revision);
+      resolved = current.name() + revision.substring(end);
+    } else {
+      resolved = revision;
+    }
+    final ObjectId id;
+    try {
+      id = getRepository().resolve(resolved);
+    } catch (RevisionSyntaxException e) {
+      throw new IOException("Invalid revision " + revision + " in " + gitBase(), e);
+    }
+    if (null == id) throw new IOException("Unknown revision " + revision + " in " + gitBase() + "; the commit may not have been fetched");
+    return id;
   }
 
   @Override
   public FSDataInputStream open(final Path f, final int bufferSize) throws IOException {
-    return getInnerFS().open(toLocalPath(f), bufferSize);
+    long start = System.nanoTime();
+    try {
+      return openLeased(f, bufferSize);
+    } finally {
+      mountStatistics.opened(System.nanoTime() - start);
+    }
+  }
+
+  @Nonnull
+  private FSDataInputStream openLeased(final Path f, final int bufferSize) throws IOException {
+    statistics.incrementReadOps(1);
+    if (!retain()) throw new IOException("Filesystem dismounted: " + gitBase());
+    final Snapshot snapshot;
+    try {
+      snapshot = acquireSnapshot();
+    } catch (IOException | RuntimeException e) {
+      release();
+      throw e;
+    }
+    try {
+      return new FSDataInputStream(new LeasedInputStream(openInner(snapshot, f), () -> {
+        snapshot.release();
+        release();
+      }));
+    } catch (IOException | RuntimeException e) {
+      snapshot.release();
+      release();
+      throw e;
+    }
+  }
+
+  @Nonnull
+  private FSDataInputStream openInner(@Nonnull final Snapshot snapshot, final Path f) throws IOException {
+    String repoPath = toRepoPath(f);
+    TreeIndex.Entry entry = snapshot.getIndex().get(repoPath);
+    if (null == entry) throw new FileNotFoundException(f.toString());
+    if (entry.isDirectory()) throw new FileNotFoundException(f.toString() + " (Is a directory)");
+    resolve(Collections.singletonList(entry));
+    if (null != blobCache && entry.getSize() <= blobCache.getMaxBlobSize() && FileMode.TYPE_FILE == (entry.getFileMode().getBits() & FileMode.TYPE_MASK)) {
+      ByteBuffer buffer = blobCache.get(entry.getObjectId());
+      mountStatistics.cached(null != buffer);
+      if (null == buffer) buffer = blobCache.put(entry.getObjectId(), getRepository().open(entry.getObjectId(), Constants.OBJ_BLOB).getCachedBytes());
+      return new FSDataInputStream(new ByteBufferInputStream(buffer, statistics));
+    }
+    File worktree = snapshot.getWorktree();
+    if (null != worktree) {
+      try {
+        File file = new File(worktree, repoPath);
+        if (snapshot.isSparse()) {
+          try (ObjectReader reader = getRepository().newObjectReader()) {
+            file = snapshot.materialize(reader, entry);
+          }
+        }
+        return new FSDataInputStream(new ChannelInputStream(file, statistics, null));
+      } catch (NoSuchFileException e) {
+        if (!isShared()) throw e;
+        logger.debug("Checkout of " + snapshot.getCommitId().name() + " was reclaimed; reading " + repoPath + " from the object database");
+      }
+    }
+    return new FSDataInputStream(new BlobInputStream(getRepository(), entry.getObjectId(), getStreamThreshold(), spoolDir, statistics));
   }
 
   @Nonnull
   @Override
   public FileStatus[] listStatus(final Path f) throws IOException {
-    return Arrays.stream(getInnerFS().listStatus(toLocalPath(f))).map(fileStatus -> filter(fileStatus)).toArray(i -> new FileStatus[i]);
+    long start = System.nanoTime();
+    try {
+      return listEntries(f);
+    } finally {
+      mountStatistics.listed(System.nanoTime() - start);
+    }
+  }
+
+  @Nonnull
+  private FileStatus[] listEntries(final Path f) throws IOException {
+    statistics.incrementReadOps(1);
+    TreeIndex index = currentIndex();
+    String repoPath = toRepoPath(f);
+    TreeIndex.Entry entry = index.get(repoPath);
+    if (null == entry) throw new FileNotFoundException(f.toString());
+    List<TreeIndex.Entry> children = index.list(repoPath);
+    if (null == children) {
+      resolve(Collections.singletonList(entry));
+      return new FileStatus[]{toFileStatus(index, entry)};
+    }
+    resolve(children);
+    FileStatus[] list = new FileStatus[children.size()];
+    for (int i = 0; i < list.length; i++) {
+      list[i] = toFileStatus(index, children.get(i));
+    }
+    return list;
   }
 
   @Override
   public FileStatus getFileStatus(final Path f) throws IOException {
-    return getInnerFS().getFileStatus(toLocalPath(f));
+    long start = System.nanoTime();
+    try {
+      return getEntryStatus(f);
+    } finally {
+      mountStatistics.statused(System.nanoTime() - start);
+    }
+  }
+
+  @Nonnull
+  private FileStatus getEntryStatus(final Path f) throws IOException {
+    statistics.incrementReadOps(1);
+    TreeIndex index = currentIndex();
+    TreeIndex.Entry entry = index.get(toRepoPath(f));
+    if (null == entry) throw new FileNotFoundException(f.toString());
+    resolve(Collections.singletonList(entry));
+    return toFileStatus(index, entry);
+  }
+
+  /**
+   * The object id recorded in the tree for the path, answered from the index without reading the file.
+   * A checksum of a prefix of a file cannot be derived from it, so shorter lengths return null.
+   */
+  @Nullable
+  @Override
+  public FileChecksum getFileChecksum(final Path f, final long length) throws IOException {
+    statistics.incrementReadOps(1);
+    TreeIndex index = currentIndex();
+    TreeIndex.Entry entry = index.get(toRepoPath(f));
+    if (null == entry) throw new FileNotFoundException(f.toString());
+    if (entry.isDirectory()) {
+      return new GitObjectChecksum(FileMode.TREE.equals(entry.getFileMode()) ? Constants.OBJ_TREE : Constants.OBJ_COMMIT, entry.getObjectId());
+    }
+    if (length < Long.MAX_VALUE) {
+      resolve(Collections.singletonList(entry));
+      if (length < entry.getSize()) return null;
+    }
+    return new GitObjectChecksum(Constants.OBJ_BLOB, entry.getObjectId());
+  }
+
+  @Nonnull
+  @Override
+  public RemoteIterator<LocatedFileStatus> listFiles(final Path f, final boolean recursive) throws IOException {
+    return new EntryIterator<LocatedFileStatus>(f, recursive, entry -> !entry.isDirectory()) {
+      @Nonnull
+      @Override
+      protected LocatedFileStatus convert(@Nonnull final FileStatus status) throws IOException {
+        return new LocatedFileStatus(status, getFileBlockLocations(status, 0, status.getLen()));
+      }
+    };
+  }
+
+  @Nonnull
+  @Override
+  protected RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path f, final PathFilter filter) throws IOException {
+    return new EntryIterator<LocatedFileStatus>(f, false, entry -> filter.accept(toGitPath(entry.getPath()))) {
+      @Nonnull
+      @Override
+      protected LocatedFileStatus convert(@Nonnull final FileStatus status) throws IOException {
+        return new LocatedFileStatus(status, status.isFile() ? getFileBlockLocations(status, 0, status.getLen()) : null);
+      }
+    };
+  }
+
+  @Nonnull
+  @Override
+  public RemoteIterator<FileStatus> listStatusIterator(final Path f) throws IOException {
+    return new EntryIterator<FileStatus>(f, false, entry -> true) {
+      @Nonnull
+      @Override
+      protected FileStatus convert(@Nonnull final FileStatus status) {
+        return status;
+      }
+    };
+  }
+
+  @Override
+  public FileStatus[] globStatus(final Path pathPattern) throws IOException {
+    return globStatus(pathPattern, path -> true);
+  }
+
+  /**
+   * Matches the pattern one path component at a time against the index, instead of listing each directory.
+   * Patterns with brace alternatives, which may span components, use the default implementation.
+   */
+  @Override
+  public FileStatus[] globStatus(final Path pathPattern, final PathFilter filter) throws IOException {
+    String pattern = toRepoPath(pathPattern);
+    if (pattern.indexOf('{') >= 0) return super.globStatus(pathPattern, filter);
+    long start = System.nanoTime();
+    try {
+      return globEntries(pathPattern, pattern, filter);
+    } finally {
+      mountStatistics.listed(System.nanoTime() - start);
+    }
+  }
+
+  @Nullable
+  private FileStatus[] globEntries(final Path pathPattern, @Nonnull final String pattern, final PathFilter filter) throws IOException {
+    statistics.incrementReadOps(1);
+    TreeIndex index = currentIndex();
+    List<TreeIndex.Entry> matches = Collections.singletonList(index.get(""));
+    boolean wildcard = false;
+    for (String component : pattern.isEmpty() ? new String[0] : pattern.split("/")) {
+      final GlobPattern glob;
+      try {
+        glob = new GlobPattern(component);
+      } catch (RuntimeException e) {
+        throw new IOException("Illegal file pattern: " + pathPattern, e);
+      }
+      List<TreeIndex.Entry> next = new ArrayList<>();
+      if (!glob.hasWildcard() && component.indexOf('\\') < 0) {
+        for (TreeIndex.Entry match : matches) {
+          TreeIndex.Entry child = index.get(match.getPath().isEmpty() ? component : match.getPath() + "/" + component);
+          if (null != child) next.add(child);
+        }
+      } else {
+        wildcard = true;
+        for (TreeIndex.Entry match : matches) {
+          List<TreeIndex.Entry> children = index.list(match.getPath());
+          if (null == children) continue;
+          for (TreeIndex.Entry child : children) {
+            if (glob.matches(TreeIndex.name(child.getPath()))) next.add(child);
+          }
+        }
+      }
+      matches = next;
+    }
+    if (!wildcard && matches.isEmpty()) return null;
+    resolve(matches);
+    List<FileStatus> list = new ArrayList<>(matches.size());
+    for (TreeIndex.Entry match : matches) {
+      FileStatus status = toFileStatus(index, match);
+      if (filter.accept(status.getPath())) list.add(status);
+    }
+    return list.toArray(new FileStatus[0]);
   }
 
   public void touch() {
     this.lastTouch = System.currentTimeMillis();
-    if (secondsSinceFetch() > getLazyPullPeriod()) try {
-      pull();
+    if (isPinned() || secondsSinceFetch() <= getLazyPullPeriod()) return;
+    RefreshScheduler.Task refreshTask = this.refreshTask;
+    boolean expired = getMaxStaleness() > 0 && secondsSinceRefresh() > getMaxStaleness();
+    if (isAsyncPull() && null != refreshTask && !expired) {
+      refreshTask.expedite();
+      return;
+    }
+    try {
+      synchronized (this) {
+        if (secondsSinceFetch() > getLazyPullPeriod() || (getMaxStaleness() > 0 && secondsSinceRefresh() > getMaxStaleness())) update();
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      notifyPulled();
     }
   }
 
@@ -240,95 +968,154 @@ public class GitRepoFileSystem extends ReadOnlyFileSystem {
     return (now - this.getLastFetch()) / 1e3;
   }
 
+  public double secondsSinceRefresh() {
+    final long now = System.currentTimeMillis();
+    return (now - this.getLastRefresh()) / 1e3;
+  }
+
   public double secondsSinceTouch() {
     final long now = System.currentTimeMillis();
     return (now - this.getLastTouch()) / 1e3;
   }
 
   @Nonnull
-  public URI localBase() {
-    return localBase;
+  public URI gitBase() {
+    return univeralBase;
   }
 
   @Nonnull
-  public URI gitBase() {
-    return univeralBase;
+  private TreeIndex currentIndex() throws IOException {
+    Snapshot snapshot = this.snapshot;
+    if (null == snapshot) throw new IOException("No commit checked out for " + gitBase());
+    return snapshot.getIndex();
   }
 
   @Nonnull
-  protected FileStatus filter(@Nonnull final FileStatus fileStatus) {
-    FileStatus newObj = new FileStatus();
-    newObj.setPath(toGitPath(fileStatus.getPath()));
-    try {
-      newObj.setSymlink(toGitPath(fileStatus.getSymlink()));
-    } catch (IOException e) {
+  private Snapshot acquireSnapshot() throws IOException {
+    while (true) {
+      Snapshot snapshot = this.snapshot;
+      if (null == snapshot) throw new IOException("No commit checked out for " + gitBase());
+      if (snapshot.retain()) return snapshot;
     }
-    return newObj;
   }
 
-  private boolean checkout(@Nonnull final Repository repository, @Nullable final Ref tagName) throws IOException {
-    if (tagName == null) return false;
-    final RevCommit commit;
-    try (RevWalk revWalk = new RevWalk(repository)) {
-      ObjectId resolve = tagName.getObjectId();
-      if (resolve == null) return false;
-      commit = revWalk.parseCommit(resolve);
-      assert commit != null;
+  private void resolve(@Nonnull final List<TreeIndex.Entry> entries) throws IOException {
+    List<TreeIndex.Entry> unresolved = new ArrayList<>();
+    for (TreeIndex.Entry entry : entries) {
+      if (!entry.isDirectory() && !entry.isResolved()) unresolved.add(entry);
     }
-    DirCache dirCache = repository.lockDirCache();
-    RevTree tree = commit.getTree();
-    DirCacheCheckout dirCacheCheckout = new DirCacheCheckout(repository, dirCache, tree);
-    dirCacheCheckout.setFailOnConflict(true);
-    boolean checkout = dirCacheCheckout.checkout();
-    logger.debug(String.format("Checked out %s: %s", tagName.getObjectId(), checkout));
-    return checkout;
-  }
-
-  private Collection<Ref> fetch(final Repository repository, @Nonnull final RemoteConfig remoteConfig, final CharSequence repoBranch) {
-    try (Transport transport = Transport.open(repository, remoteConfig)) {
-      configure(transport);
-      transport.setCheckFetchedObjects(false);
-      transport.setRemoveDeletedRefs(false);
-      transport.setDryRun(false);
-      transport.setTagOpt(TagOpt.FETCH_TAGS);
-      transport.setFetchThin(false);
-      final ProgressMonitor monitor = new EmptyProgressMonitor() {
-      };
-      FetchResult result = transport.fetch(monitor, Arrays.asList(
-          new RefSpec("refs/heads/" + repoBranch)
-      ));
-      logger.debug(String.format("Fetched %s: %s", result.getURI(), result.getMessages()));
-      result.getAdvertisedRefs().stream().forEach(ref -> {
-        logger.debug(String.format("Remote Ref: %s = %s", ref.getName(), ref.getObjectId()));
-      });
-      return result.getAdvertisedRefs();
-    } catch (Throwable e) {
-      throw new RuntimeException(e);
+    if (unresolved.isEmpty()) return;
+    List<ObjectId> ids = new ArrayList<>();
+    for (TreeIndex.Entry entry : unresolved) ids.add(entry.getObjectId());
+    fetchBlobs(ids);
+    try (ObjectReader reader = getRepository().newObjectReader()) {
+      for (TreeIndex.Entry entry : unresolved) entry.resolve(reader);
     }
   }
 
-  private void configure(@Nonnull final Transport transport) {
-    String username = getProperty("fs.jgit.auth.user", "").toString();
-    if (!username.isEmpty()) {
-      String password = getProperty("fs.jgit.auth.pass").toString();
-      logger.debug(String.format("Login: %s %s", username, password.replaceAll(".", "*")));
-      transport.setCredentialsProvider(new UsernamePasswordCredentialsProvider(username, password));
+  @Nonnull
+  private FileStatus toFileStatus(@Nonnull final TreeIndex index, @Nonnull final TreeIndex.Entry entry) {
+    long modificationTime = index.getModificationTime(entry.getPath());
+    Path path = toGitPath(entry.getPath());
+    if (entry.isDirectory()) {
+      return new FileStatus(0, true, 1, 0, modificationTime, modificationTime, new FsPermission((short) 0555), null, null, path);
     }
+    Path symlink = null == entry.getSymlink() ? null : new Path(entry.getSymlink());
+    short permission = FileMode.EXECUTABLE_FILE.equals(entry.getFileMode()) ? (short) 0555 : (short) 0444;
+    return new FileStatus(entry.getSize(), false, 1, blockSize, modificationTime, modificationTime, new FsPermission(permission), null, null, symlink, path);
   }
 
-  @Nonnull
-  private RemoteConfig getRemoteConfig(final URIish uri, @Nonnull final StoredConfig config) throws URISyntaxException, IOException {
-    RemoteConfig remote = new RemoteConfig(config, "origin");
-    remote.addFetchRefSpec(new RefSpec().setForceUpdate(true).setSourceDestination("refs/heads/*", "refs/remotes/origin/*"));
-    remote.addURI(uri);
-    remote.update(config);
-    config.save();
-    return remote;
+  /**
+   * Lazily converts the entries below a path of the index current when the listing started, counting as one list
+   * call whose time includes each batch. Entries are taken
+   * from the walk in batches, so a partial clone fetches the missing blobs of each batch together. The caller must
+   * hold a reference on the mount until the iteration ends; routed listings do so with {@link LeasedIterator}.
+   */
+  private abstract class EntryIterator<T extends FileStatus> implements RemoteIterator<T> {
+    private static final int BATCH = 256;
+    @Nonnull
+    private final TreeIndex index;
+    @Nonnull
+    private final Iterator<TreeIndex.Entry> entries;
+    @Nonnull
+    private final Predicate<TreeIndex.Entry> accept;
+    @Nonnull
+    private final List<TreeIndex.Entry> batch = new ArrayList<>(BATCH);
+    private int next = 0;
+
+    EntryIterator(@Nonnull final Path f, final boolean recursive, @Nonnull final Predicate<TreeIndex.Entry> accept) throws IOException {
+      long start = System.nanoTime();
+      try {
+        statistics.incrementReadOps(1);
+        this.index = currentIndex();
+        String repoPath = toRepoPath(f);
+        TreeIndex.Entry entry = index.get(repoPath);
+        if (null == entry) throw new FileNotFoundException(f.toString());
+        this.entries = entry.isDirectory() ? index.walk(repoPath, recursive) : Collections.singletonList(entry).iterator();
+        this.accept = accept;
+      } finally {
+        mountStatistics.listed(System.nanoTime() - start);
+      }
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      if (next < batch.size()) return true;
+      long start = System.nanoTime();
+      try {
+        batch.clear();
+        next = 0;
+        while (batch.size() < BATCH && entries.hasNext()) {
+          TreeIndex.Entry entry = entries.next();
+          if (accept.test(entry)) batch.add(entry);
+        }
+        resolve(batch);
+        return !batch.isEmpty();
+      } finally {
+        mountStatistics.listContinued(System.nanoTime() - start);
+      }
+    }
+
+    @Override
+    public T next() throws IOException {
+      if (!hasNext()) throw new NoSuchElementException();
+      return convert(toFileStatus(index, batch.get(next++)));
+    }
+
+    @Nonnull
+    protected abstract T convert(@Nonnull FileStatus status) throws IOException;
+  }
+
+  @Nullable
+  private static Ref findRef(@Nonnull final Collection<Ref> refs, @Nonnull final CharSequence branch) {
+    Ref head = null;
+    for (Ref ref : refs) {
+      if (ref.getName().equals("refs/heads/" + branch)) return ref;
+      if (ref.getName().equals(Constants.HEAD)) head = ref;
+    }
+    return head;
   }
 
-  private class LocalRepoFileSystem extends RawLocalFileSystem {
-    public LocalRepoFileSystem() {
-      statistics = GitRepoFileSystem.this.statistics;
+  @Nullable
+  private RevCommit resolveCommit(@Nonnull final Repository repository, @Nullable final ObjectId resolve) throws IOException {
+    if (resolve == null) return null;
+    try (RevWalk revWalk = new RevWalk(repository)) {
+      RevCommit commit = revWalk.parseCommit(resolve);
+      assert commit != null;
+      return commit;
     }
   }
+
+  private void fetchBlobs(@Nonnull final Collection<ObjectId> blobs) throws IOException {
+    remote.fetchBlobs(credentials, blobs, mountStatistics);
+  }
+
+  @Nullable
+  private CredentialsProvider getCredentials() {
+    String username = getProperty("fs.jgit.auth.user", "").toString();
+    if (username.isEmpty()) return null;
+    String password = getProperty("fs.jgit.auth.pass").toString();
+    logger.debug(String.format("Login: %s %s", username, password.replaceAll(".", "*")));
+    return new UsernamePasswordCredentialsProvider(username, password);
+  }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last-modified times per path, taken from the newest first-parent commit that changed each path.
+ * Paths not changed within the walked depth get the time of the oldest commit walked.
+ */
+class HistoryIndex {
+  @Nonnull
+  private final ObjectId commitId;
+  @Nonnull
+  private final Map<String, Long> modificationTimes;
+  private final long fallbackTime;
+
+  private HistoryIndex(@Nonnull final ObjectId commitId, @Nonnull final Map<String, Long> modificationTimes, final long fallbackTime) {
+    this.commitId = commitId;
+    this.modificationTimes = modificationTimes;
+    this.fallbackTime = fallbackTime;
+  }
+
+  @Nonnull
+  public static HistoryIndex build(@Nonnull final ObjectReader reader, @Nonnull final RevCommit head, @Nonnull final TreeIndex index, @Nullable final HistoryIndex previous, final int depth) throws IOException {
+    Map<String, Long> modificationTimes = new HashMap<>();
+    int remaining = index.size();
+    long fallbackTime = head.getCommitTime() * 1000L;
+    try (RevWalk revWalk = new RevWalk(reader)) {
+      RevCommit commit = revWalk.parseCommit(head);
+      for (int i = 0; i < depth && null != commit && remaining > 0; i++) {
+        if (null != previous && previous.commitId.equals(commit)) {
+          for (String path : index.paths()) {
+            if (!modificationTimes.containsKey(path)) modificationTimes.put(path, previous.get(path));
+          }
+          return new HistoryIndex(head.copy(), modificationTimes, previous.fallbackTime);
+        }
+        long commitTime = commit.getCommitTime() * 1000L;
+        fallbackTime = commitTime;
+        RevCommit parent = commit.getParentCount() == 0 ? null : revWalk.parseCommit(commit.getParent(0));
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+          treeWalk.addTree(commit.getTree());
+          if (null == parent) treeWalk.addTree(new EmptyTreeIterator());
+          else treeWalk.addTree(parent.getTree());
+          treeWalk.setFilter(TreeFilter.ANY_DIFF);
+          treeWalk.setRecursive(true);
+          while (treeWalk.next()) {
+            String path = treeWalk.getPathString();
+            while (true) {
+              if (!modificationTimes.containsKey(path) && null != index.get(path)) {
+                modificationTimes.put(path, commitTime);
+                remaining--;
+              }
+              if (path.isEmpty()) break;
+              path = TreeIndex.parent(path);
+            }
+          }
+        }
+        commit = parent;
+      }
+    }
+    return new HistoryIndex(head.copy(), modificationTimes, fallbackTime);
+  }
+
+  @Nonnull
+  public ObjectId getCommitId() {
+    return commitId;
+  }
+
+  public long get(@Nonnull final String path) {
+    Long time = modificationTimes.get(path);
+    return null == time ? fallbackTime : time;
+  }
+}
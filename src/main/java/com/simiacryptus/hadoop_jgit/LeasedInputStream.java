@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.ByteBufferPositionedReadable;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.StreamCapabilities;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds a reference on its mount until closed, so the mount cannot be dismounted under an open stream.
+ */
+class LeasedInputStream extends FSInputStream implements ByteBufferReadable, ByteBufferPositionedReadable, CanSetReadahead, StreamCapabilities {
+  @Nonnull
+  private final FSDataInputStream inner;
+  @Nonnull
+  private final Runnable release;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  public LeasedInputStream(@Nonnull final FSDataInputStream inner, @Nonnull final Runnable release) {
+    this.inner = inner;
+    this.release = release;
+  }
+
+  @Override
+  public void seek(final long pos) throws IOException {
+    inner.seek(pos);
+  }
+
+  @Override
+  public long getPos() throws IOException {
+    return inner.getPos();
+  }
+
+  @Override
+  public boolean seekToNewSource(final long targetPos) throws IOException {
+    return inner.seekToNewSource(targetPos);
+  }
+
+  @Override
+  public int read() throws IOException {
+    return inner.read();
+  }
+
+  @Override
+  public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+    return inner.read(b, off, len);
+  }
+
+  @Override
+  public int read(final long position, final byte[] buffer, final int offset, final int length) throws IOException {
+    return inner.read(position, buffer, offset, length);
+  }
+
+  @Override
+  public void readFully(final long position, final byte[] buffer, final int offset, final int length) throws IOException {
+    inner.readFully(position, buffer, offset, length);
+  }
+
+  @Override
+  public int read(@Nonnull final ByteBuffer dst) throws IOException {
+    return inner.read(dst);
+  }
+
+  @Override
+  public int read(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    return inner.read(position, dst);
+  }
+
+  @Override
+  public void readFully(final long position, @Nonnull final ByteBuffer dst) throws IOException {
+    inner.readFully(position, dst);
+  }
+
+  @Override
+  public void setReadahead(@Nullable final Long readahead) throws IOException {
+    inner.setReadahead(readahead);
+  }
+
+  @Override
+  public boolean hasCapability(final String capability) {
+    return inner.hasCapability(capability);
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    return inner.skip(n);
+  }
+
+  @Override
+  public int available() throws IOException {
+    return inner.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed.compareAndSet(false, true)) return;
+    try {
+      inner.close();
+    } finally {
+      release.run();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.RemoteIterator;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds a reference on its mount while a listing is iterated, so the index-backed iterator can keep resolving
+ * entries from the mount's repository. The reference is released when the iterator is exhausted, when it throws, or
+ * when it is closed; a caller abandoning a listing early should close it, or the mount stays busy.
+ */
+class LeasedIterator<T> implements RemoteIterator<T>, Closeable {
+  @Nonnull
+  private final RemoteIterator<T> inner;
+  @Nonnull
+  private final Runnable release;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  public LeasedIterator(@Nonnull final RemoteIterator<T> inner, @Nonnull final Runnable release) {
+    this.inner = inner;
+    this.release = release;
+  }
+
+  @Override
+  public boolean hasNext() throws IOException {
+    if (closed.get()) return false;
+    try {
+      if (inner.hasNext()) return true;
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    close();
+    return false;
+  }
+
+  @Override
+  public T next() throws IOException {
+    if (!hasNext()) throw new NoSuchElementException();
+    try {
+      return inner.next();
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) release.run();
+  }
+}
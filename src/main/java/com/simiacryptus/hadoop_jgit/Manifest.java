@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The last snapshot of a mount as recorded on disk, so a new process can serve it before contacting the remote.
+ * Written atomically after each change of commit and on dismount.
+ */
+class Manifest {
+  private static final Logger logger = LoggerFactory.getLogger(Manifest.class);
+  @Nonnull
+  private final String remote;
+  @Nonnull
+  private final String branch;
+  @Nonnull
+  private final ObjectId commitId;
+  @Nullable
+  private final File worktree;
+  private final long lastFetch;
+  private final long lastRefresh;
+
+  public Manifest(@Nonnull final String remote, @Nonnull final String branch, @Nonnull final ObjectId commitId, @Nullable final File worktree, final long lastFetch, final long lastRefresh) {
+    this.remote = remote;
+    this.branch = branch;
+    this.commitId = commitId;
+    this.worktree = worktree;
+    this.lastFetch = lastFetch;
+    this.lastRefresh = lastRefresh;
+  }
+
+  /**
+   * The manifest in the given file, or null if there is none or it cannot be parsed.
+   */
+  @Nullable
+  public static Manifest read(@Nonnull final File file) {
+    if (!file.isFile()) return null;
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+      return new Manifest(
+          properties.getProperty("remote"),
+          properties.getProperty("branch"),
+          ObjectId.fromString(properties.getProperty("commit")),
+          properties.containsKey("worktree") ? new File(properties.getProperty("worktree")) : null,
+          Long.parseLong(properties.getProperty("fetched")),
+          Long.parseLong(properties.getProperty("refreshed")));
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Ignoring unreadable manifest " + file.getAbsolutePath(), e);
+      return null;
+    }
+  }
+
+  public void write(@Nonnull final File file) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("remote", remote);
+    properties.setProperty("branch", branch);
+    properties.setProperty("commit", commitId.name());
+    if (null != worktree) properties.setProperty("worktree", worktree.getAbsolutePath());
+    properties.setProperty("fetched", Long.toString(lastFetch));
+    properties.setProperty("refreshed", Long.toString(lastRefresh));
+    file.getParentFile().mkdirs();
+    File temp = new File(file.getParentFile(), file.getName() + ".tmp-" + System.nanoTime());
+    try {
+      try (OutputStream out = new FileOutputStream(temp)) {
+        properties.store(out, null);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (temp.exists()) temp.delete();
+    }
+  }
+
+  public boolean matches(@Nonnull final String remote, @Nonnull final String branch) {
+    return this.remote.equals(remote) && this.branch.equals(branch);
+  }
+
+  @Nonnull
+  public ObjectId getCommitId() {
+    return commitId;
+  }
+
+  /**
+   * The checkout the snapshot was served from, if any; it may since have been reclaimed.
+   */
+  @Nullable
+  public File getWorktree() {
+    return worktree;
+  }
+
+  public long getLastFetch() {
+    return lastFetch;
+  }
+
+  public long getLastRefresh() {
+    return lastRefresh;
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.GlobalStorageStatistics;
+import org.apache.hadoop.fs.StorageStatistics;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative Git-specific statistics of one mounted repository branch.
+ * Instances are registered with {@link GlobalStorageStatistics} under "jgit:" plus the mount's base URI while the
+ * branch is mounted, and unregistered when its last mount is dismounted or evicted; when enabled they are also
+ * published as a metrics2 source, which shows up in JMX once the Hadoop metrics system is running.
+ */
+public class MountStatistics extends StorageStatistics implements MetricsSource {
+  public static final String FETCHES = "fetches";
+  public static final String FETCH_TIME = "fetch.time.ms";
+  public static final String FETCH_FAILURES = "fetch.failures";
+  public static final String LS_REMOTES = "lsremotes";
+  public static final String LS_REMOTE_TIME = "lsremote.time.ms";
+  public static final String BYTES_RECEIVED = "bytes.received";
+  public static final String OBJECTS_RECEIVED = "objects.received";
+  public static final String CHECKOUTS = "checkouts";
+  public static final String CHECKOUT_TIME = "checkout.time.ms";
+  public static final String NO_OP_REFRESHES = "refreshes.noop";
+  public static final String CHANGED_REFRESHES = "refreshes.changed";
+  public static final String OPENS = "opens";
+  public static final String OPEN_TIME = "open.time.us";
+  public static final String CACHE_HITS = "cache.hits";
+  public static final String CACHE_MISSES = "cache.misses";
+  public static final String LISTS = "lists";
+  public static final String LIST_TIME = "list.time.us";
+  public static final String STATUSES = "statuses";
+  public static final String STATUS_TIME = "status.time.us";
+  public static final String MOUNTS = "mounts";
+  public static final String DISMOUNTS = "dismounts";
+  public static final String EVICTIONS = "evictions";
+  public static final String MAINTENANCES = "maintenances";
+  public static final String MAINTENANCE_TIME = "maintenance.time.ms";
+  public static final String PACKS = "packs";
+  public static final String DISK_USAGE = "disk.bytes";
+  public static final String SNAPSHOT_AGE = "snapshot.age.ms";
+  private static final Logger logger = LoggerFactory.getLogger(MountStatistics.class);
+  private final Map<String, AtomicLong> counters = new LinkedHashMap<>();
+  private final MetricsRegistry registry;
+  private final MutableQuantiles fetchQuantiles;
+  private final MutableQuantiles checkoutQuantiles;
+  private final MutableQuantiles maintenanceQuantiles;
+  private final MutableRate openRate;
+  private final MutableRate listRate;
+  private final MutableRate statusRate;
+  private boolean published = false;
+  private int references = 0;
+  @Nullable
+  private volatile GitRepoFileSystem mount;
+
+  private MountStatistics(@Nonnull final String name) {
+    super(name);
+    for (String key : new String[]{FETCHES, FETCH_TIME, FETCH_FAILURES, LS_REMOTES, LS_REMOTE_TIME, BYTES_RECEIVED, OBJECTS_RECEIVED,
+        CHECKOUTS, CHECKOUT_TIME, NO_OP_REFRESHES, CHANGED_REFRESHES, OPENS, OPEN_TIME, CACHE_HITS, CACHE_MISSES, LISTS, LIST_TIME, STATUSES, STATUS_TIME,
+        MOUNTS, DISMOUNTS, EVICTIONS, MAINTENANCES, MAINTENANCE_TIME}) {
+      counters.put(key, new AtomicLong(0));
+    }
+    registry = new MetricsRegistry(sourceName(name)).setContext("jgit").tag("Mount", "Mounted repository branch", name);
+    fetchQuantiles = registry.newQuantiles("fetchTime", "Fetch duration", "ops", "ms", 60);
+    checkoutQuantiles = registry.newQuantiles("checkoutTime", "Snapshot build duration", "ops", "ms", 60);
+    maintenanceQuantiles = registry.newQuantiles("maintenanceTime", "Object database maintenance duration", "ops", "ms", 3600);
+    openRate = registry.newRate("open", "Open calls", false);
+    listRate = registry.newRate("list", "List calls", false);
+    statusRate = registry.newRate("status", "Status calls", false);
+  }
+
+  /**
+   * Takes a reference on the statistics of the mount with the given base URI, creating and registering them when
+   * no other mount of the branch holds them. Each reference is given back by {@link #detach} or {@link #release}.
+   */
+  @Nonnull
+  static MountStatistics acquire(@Nonnull final String baseUri, final boolean publish) {
+    String name = "jgit:" + baseUri;
+    synchronized (MountStatistics.class) {
+      MountStatistics statistics = (MountStatistics) GlobalStorageStatistics.INSTANCE.put(name, () -> new MountStatistics(name));
+      if (0 == statistics.references++ && publish) {
+        try {
+          DefaultMetricsSystem.instance().register(sourceName(name), "Git mount " + baseUri, statistics);
+          statistics.published = true;
+        } catch (RuntimeException e) {
+          logger.warn("Could not register metrics source for " + baseUri, e);
+        }
+      }
+      return statistics;
+    }
+  }
+
+  /**
+   * Gives back a reference; the last one unregisters the statistics and stops their quantile rollovers.
+   */
+  void release() {
+    synchronized (MountStatistics.class) {
+      if (--references > 0) return;
+      if (published) {
+        try {
+          DefaultMetricsSystem.instance().unregisterSource(sourceName(getName()));
+        } catch (RuntimeException e) {
+          logger.warn("Could not unregister metrics source " + getName(), e);
+        }
+        published = false;
+      }
+      fetchQuantiles.stop();
+      checkoutQuantiles.stop();
+      maintenanceQuantiles.stop();
+      remove(getName(), this);
+    }
+  }
+
+  /**
+   * {@link GlobalStorageStatistics} has no way to drop an entry, so it is removed from the backing map under the
+   * same lock its own methods take.
+   */
+  @SuppressWarnings("unchecked")
+  private static void remove(@Nonnull final String name, @Nonnull final StorageStatistics statistics) {
+    synchronized (GlobalStorageStatistics.INSTANCE) {
+      try {
+        Field field = GlobalStorageStatistics.class.getDeclaredField("map");
+        field.setAccessible(true);
+        ((Map<String, StorageStatistics>) field.get(GlobalStorageStatistics.INSTANCE)).remove(name, statistics);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.warn("Could not unregister storage statistics " + name, e);
+      }
+    }
+  }
+
+  @Nonnull
+  private static String sourceName(@Nonnull final String name) {
+    return "GitMount-" + name.replaceAll("[^A-Za-z0-9._-]+", "_");
+  }
+
+  void attach(@Nonnull final GitRepoFileSystem mount) {
+    this.mount = mount;
+    increment(MOUNTS, 1);
+  }
+
+  /**
+   * Records the dismount, or eviction, of a mount and gives back its reference.
+   */
+  void detach(@Nonnull final GitRepoFileSystem mount, final boolean evicted) {
+    if (this.mount == mount) this.mount = null;
+    increment(DISMOUNTS, 1);
+    if (evicted) increment(EVICTIONS, 1);
+    release();
+  }
+
+  void fetched(final long millis, final long objects, final long bytes) {
+    increment(FETCHES, 1);
+    increment(FETCH_TIME, millis);
+    increment(OBJECTS_RECEIVED, objects);
+    increment(BYTES_RECEIVED, bytes);
+    fetchQuantiles.add(millis);
+  }
+
+  void fetchFailed() {
+    increment(FETCH_FAILURES, 1);
+  }
+
+  void listedRemote(final long millis) {
+    increment(LS_REMOTES, 1);
+    increment(LS_REMOTE_TIME, millis);
+  }
+
+  void checkedOut(final long millis) {
+    increment(CHECKOUTS, 1);
+    increment(CHECKOUT_TIME, millis);
+    checkoutQuantiles.add(millis);
+  }
+
+  void maintained(final long millis) {
+    increment(MAINTENANCES, 1);
+    increment(MAINTENANCE_TIME, millis);
+    maintenanceQuantiles.add(millis);
+  }
+
+  void refreshed(final boolean changed) {
+    increment(changed ? CHANGED_REFRESHES : NO_OP_REFRESHES, 1);
+  }
+
+  void opened(final long nanos) {
+    increment(OPENS, 1);
+    increment(OPEN_TIME, nanos / 1000);
+    openRate.add(nanos / 1000);
+  }
+
+  void cached(final boolean hit) {
+    increment(hit ? CACHE_HITS : CACHE_MISSES, 1);
+  }
+
+  void listed(final long nanos) {
+    increment(LISTS, 1);
+    increment(LIST_TIME, nanos / 1000);
+    listRate.add(nanos / 1000);
+  }
+
+  /**
+   * Adds time spent on a listing already counted, as iterated listings convert their entries batch by batch.
+   */
+  void listContinued(final long nanos) {
+    increment(LIST_TIME, nanos / 1000);
+  }
+
+  void statused(final long nanos) {
+    increment(STATUSES, 1);
+    increment(STATUS_TIME, nanos / 1000);
+    statusRate.add(nanos / 1000);
+  }
+
+  /**
+   * Milliseconds since the current snapshot was last confirmed against the remote, or 0 while not mounted.
+   */
+  public long getSnapshotAge() {
+    GitRepoFileSystem mount = this.mount;
+    return null == mount || 0 == mount.getLastRefresh() ? 0 : System.currentTimeMillis() - mount.getLastRefresh();
+  }
+
+  /**
+   * Bytes used by the mount's checkouts and spool files, or 0 while not mounted or when no disk budget is set.
+   */
+  public long getDiskUsage() {
+    GitRepoFileSystem mount = this.mount;
+    return null == mount ? 0 : mount.getDiskUsage();
+  }
+
+  /**
+   * Pack files in the mount's shared object database, or 0 while not mounted.
+   */
+  public long getPackCount() {
+    GitRepoFileSystem mount = this.mount;
+    return null == mount ? 0 : mount.getRemote().getPackCount();
+  }
+
+  private void increment(@Nonnull final String key, final long value) {
+    counters.get(key).addAndGet(value);
+  }
+
+  @Override
+  public String getScheme() {
+    return "git";
+  }
+
+  @Override
+  public Iterator<LongStatistic> getLongStatistics() {
+    List<LongStatistic> list = new ArrayList<>(counters.size() + 3);
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      list.add(new LongStatistic(entry.getKey(), entry.getValue().get()));
+    }
+    list.add(new LongStatistic(SNAPSHOT_AGE, getSnapshotAge()));
+    list.add(new LongStatistic(DISK_USAGE, getDiskUsage()));
+    list.add(new LongStatistic(PACKS, getPackCount()));
+    return list.iterator();
+  }
+
+  @Override
+  public Long getLong(final String key) {
+    if (SNAPSHOT_AGE.equals(key)) return getSnapshotAge();
+    if (DISK_USAGE.equals(key)) return getDiskUsage();
+    if (PACKS.equals(key)) return getPackCount();
+    AtomicLong counter = counters.get(key);
+    return null == counter ? null : counter.get();
+  }
+
+  @Override
+  public boolean isTracked(final String key) {
+    return SNAPSHOT_AGE.equals(key) || DISK_USAGE.equals(key) || PACKS.equals(key) || counters.containsKey(key);
+  }
+
+  @Override
+  public void reset() {
+    for (AtomicLong counter : counters.values()) counter.set(0);
+  }
+
+  @Override
+  public void getMetrics(final MetricsCollector collector, final boolean all) {
+    MetricsRecordBuilder builder = collector.addRecord(registry.info());
+    registry.snapshot(builder, all);
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      String name = entry.getKey().replace('.', '_');
+      builder.addCounter(Interns.info(name, entry.getKey()), entry.getValue().get());
+    }
+    builder.addGauge(Interns.info("snapshot_age_ms", "Time since the snapshot was last confirmed"), getSnapshotAge());
+    builder.addGauge(Interns.info("disk_bytes", "Bytes used by the mount's checkouts and spool files"), getDiskUsage());
+    builder.addGauge(Interns.info("packs", "Pack files in the shared object database"), getPackCount());
+  }
+}
@@ -24,11 +24,13 @@ import org.eclipse.jgit.transport.URIish;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.net.URISyntaxException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class ParsePath {
-  private static final Pattern gitRegex = Pattern.compile("/(.*\\.git/)([^/]*)/?(.*)");
+  private static final String GIT_SUFFIX = ".git/";
+  /**
+   * Marks the branch segment as a fixed revision, e.g. {@code repo.git/@v1.0/} for a tag or {@code repo.git/@<commit id>/} for a commit.
+   */
+  public static final String PIN_PREFIX = "@";
   @Nullable
   private final String url;
   private String repoPath;
@@ -40,6 +42,11 @@ class ParsePath {
     this.url = url;
   }
 
+  @Nonnull
+  public static ParsePath ofPath(@Nonnull final String path) {
+    return new ParsePath(path).parse(path);
+  }
+
   public CharSequence getFilePath() {
     return filePath;
   }
@@ -48,6 +55,24 @@ class ParsePath {
     return repoBranch;
   }
 
+  /**
+   * True when the branch segment names a tag or commit id, which never moves once resolved.
+   */
+  public boolean isPinned() {
+    return isPinned(repoBranch);
+  }
+
+  public static boolean isPinned(@Nonnull final String branch) {
+    return branch.length() > PIN_PREFIX.length() && branch.startsWith(PIN_PREFIX);
+  }
+
+  /**
+   * The tag name or commit id of a pinned path.
+   */
+  public String getRevision() {
+    return repoBranch.substring(PIN_PREFIX.length());
+  }
+
   public CharSequence getRepoPath() {
     return repoPath;
   }
@@ -62,16 +87,51 @@ class ParsePath {
     } catch (URISyntaxException e) {
       throw new RuntimeException(e);
     }
-    Matcher matcher = null == path ? null : gitRegex.matcher(path);
-    if (null != matcher && matcher.matches()) {
-      repoPath = matcher.group(1);
-      repoBranch = matcher.group(2);
-      filePath = matcher.group(3);
-    } else {
+    return parse(null == path ? null : path.toString());
+  }
+
+  /**
+   * Splits a path of the form /repo/path.git/branch/file/path at its last ".git/" segment
+   * without a regex or URI parse, for callers that already hold the decoded path.
+   */
+  @Nonnull
+  public ParsePath parse(@Nullable final String path) {
+    int index = null == path || !path.startsWith("/") ? -1 : gitIndex(path);
+    if (index < 0) {
       repoPath = "";
       repoBranch = "master";
       filePath = "";
+      return this;
+    }
+    int branchStart = index + GIT_SUFFIX.length();
+    int branchEnd = path.indexOf('/', branchStart);
+    repoPath = path.substring(1, branchStart);
+    if (branchEnd < 0) {
+      repoBranch = path.substring(branchStart);
+      filePath = "";
+    } else {
+      repoBranch = path.substring(branchStart, branchEnd);
+      filePath = path.substring(branchEnd + 1);
     }
     return this;
   }
+
+  /**
+   * Length of the "/repo/path.git/branch" prefix that {@link #parse} splits off, or -1 if the path has no ".git/"
+   * segment; computed without allocating, so mounts can be looked up by it directly.
+   */
+  public static int prefixLength(@Nonnull final String path) {
+    int index = path.startsWith("/") ? gitIndex(path) : -1;
+    if (index < 0) return -1;
+    int branchEnd = path.indexOf('/', index + GIT_SUFFIX.length());
+    return branchEnd < 0 ? path.length() : branchEnd;
+  }
+
+  /**
+   * Index of the ".git/" that ends the repository path, or -1.
+   */
+  public static int gitIndex(@Nonnull final String path) {
+    int index = path.lastIndexOf(GIT_SUFFIX);
+    return index < 1 ? -1 : index;
+  }
 }
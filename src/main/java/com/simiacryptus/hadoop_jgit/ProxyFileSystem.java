@@ -21,8 +21,12 @@ package com.simiacryptus.hadoop_jgit;
 
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.util.Progressable;
 
@@ -44,18 +48,99 @@ public abstract class ProxyFileSystem extends ConfigurableFileSystem {
 
   @Override
   public FSDataInputStream open(final Path f, final int bufferSize) throws IOException {
-    return route(f).open(filter(f), bufferSize);
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.open(filter(f), bufferSize);
+    } finally {
+      fs.release();
+    }
   }
 
   @Nonnull
   @Override
   public FileStatus[] listStatus(final Path f) throws IOException {
-    return route(f).listStatus(filter(f));
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.listStatus(filter(f));
+    } finally {
+      fs.release();
+    }
+  }
+
+  @Nonnull
+  @Override
+  public RemoteIterator<FileStatus> listStatusIterator(final Path f) throws IOException {
+    GitRepoFileSystem fs = route(f);
+    try {
+      return new LeasedIterator<>(fs.listStatusIterator(filter(f)), fs::release);
+    } catch (IOException | RuntimeException e) {
+      fs.release();
+      throw e;
+    }
+  }
+
+  @Nonnull
+  @Override
+  protected RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path f, final PathFilter pathFilter) throws IOException {
+    GitRepoFileSystem fs = route(f);
+    try {
+      return new LeasedIterator<>(fs.listLocatedStatus(filter(f), pathFilter), fs::release);
+    } catch (IOException | RuntimeException e) {
+      fs.release();
+      throw e;
+    }
+  }
+
+  @Nonnull
+  @Override
+  public RemoteIterator<LocatedFileStatus> listFiles(final Path f, final boolean recursive) throws IOException {
+    GitRepoFileSystem fs = route(f);
+    try {
+      return new LeasedIterator<>(fs.listFiles(filter(f), recursive), fs::release);
+    } catch (IOException | RuntimeException e) {
+      fs.release();
+      throw e;
+    }
+  }
+
+  @Override
+  public FileStatus[] globStatus(final Path pathPattern) throws IOException {
+    GitRepoFileSystem fs = route(pathPattern);
+    try {
+      return fs.globStatus(filter(pathPattern));
+    } finally {
+      fs.release();
+    }
+  }
+
+  @Override
+  public FileStatus[] globStatus(final Path pathPattern, final PathFilter pathFilter) throws IOException {
+    GitRepoFileSystem fs = route(pathPattern);
+    try {
+      return fs.globStatus(filter(pathPattern), pathFilter);
+    } finally {
+      fs.release();
+    }
+  }
+
+  @Override
+  public FileChecksum getFileChecksum(final Path f, final long length) throws IOException {
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.getFileChecksum(filter(f), length);
+    } finally {
+      fs.release();
+    }
   }
 
   @Override
   public FileStatus getFileStatus(final Path f) throws IOException {
-    return route(f).getFileStatus(filter(f));
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.getFileStatus(filter(f));
+    } finally {
+      fs.release();
+    }
   }
 
   @Nonnull
@@ -69,30 +154,58 @@ public abstract class ProxyFileSystem extends ConfigurableFileSystem {
       final long blockSize,
       final Progressable progress
   ) {
-    return route(f).create(filter(f), permission, overwrite, bufferSize, replication, blockSize, progress);
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.create(filter(f), permission, overwrite, bufferSize, replication, blockSize, progress);
+    } finally {
+      fs.release();
+    }
   }
 
   @Nonnull
   @Override
   public FSDataOutputStream append(final Path f, final int bufferSize, final Progressable progress) {
-    return route(f).append(filter(f), bufferSize, progress);
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.append(filter(f), bufferSize, progress);
+    } finally {
+      fs.release();
+    }
   }
 
   @Override
   public boolean rename(final Path src, final Path dst) {
-    return route(src).rename(filter(src), dst);
+    GitRepoFileSystem fs = route(src);
+    try {
+      return fs.rename(filter(src), dst);
+    } finally {
+      fs.release();
+    }
   }
 
   @Override
   public boolean delete(final Path f, final boolean recursive) {
-    return route(f).delete(filter(f), recursive);
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.delete(filter(f), recursive);
+    } finally {
+      fs.release();
+    }
   }
 
   @Override
   public boolean mkdirs(final Path f, final FsPermission permission) {
-    return route(f).mkdirs(filter(f), permission);
+    GitRepoFileSystem fs = route(f);
+    try {
+      return fs.mkdirs(filter(f), permission);
+    } finally {
+      fs.release();
+    }
   }
 
+  /**
+   * Returns the mount for the given path with a reference held; callers must release it.
+   */
   protected abstract GitRepoFileSystem route(Path f);
 
   @Nonnull
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.Path;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Notified after a pull moves a mounted branch to a new commit, once that commit is served. Listeners run on the
+ * thread that pulled, which is usually a background refresh worker, but outside the mount's lock, so reading the
+ * mount is safe; notifications of one mount are delivered in order, so slow work should still be handed off.
+ */
+@FunctionalInterface
+public interface PullListener {
+  /**
+   * @param root     the root of the mounted branch
+   * @param previous the commit served before the pull, which after a restart is the one recorded on disk, or null
+   *                 on the first pull of a branch
+   * @param current  the commit now served
+   * @param changes  the files changed between the two commits; every file on the first pull
+   */
+  void pulled(@Nonnull Path root, @Nullable ObjectId previous, @Nonnull ObjectId current, @Nonnull List<ChangedPath> changes);
+}
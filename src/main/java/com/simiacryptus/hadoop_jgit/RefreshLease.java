@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-wide ownership of a mount's refreshes, held as an OS lock on a file in the mount's directory.
+ * The owning process fetches and publishes snapshots for every process sharing the directory; the lock goes away
+ * with the process, so another one takes over on its next refresh.
+ */
+class RefreshLease implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(RefreshLease.class);
+  /**
+   * Lock files held anywhere in this JVM. POSIX locks belong to the process, and closing any channel on the file drops
+   * them, so a second instance must not so much as open a file this JVM already holds.
+   */
+  private static final Set<String> held = ConcurrentHashMap.newKeySet();
+  @Nonnull
+  private final File file;
+  @Nullable
+  private FileChannel channel;
+  @Nullable
+  private FileLock lock;
+
+  public RefreshLease(@Nonnull final File file) {
+    this.file = file;
+  }
+
+  /**
+   * Takes the lease if no other process holds it. Returns true if this instance holds it afterwards.
+   */
+  public synchronized boolean tryAcquire() throws IOException {
+    if (null != lock) return true;
+    String path = file.getAbsolutePath();
+    if (!held.add(path)) return false;
+    FileChannel channel;
+    try {
+      file.getParentFile().mkdirs();
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException | RuntimeException e) {
+      held.remove(path);
+      throw e;
+    }
+    try {
+      FileLock lock = channel.tryLock();
+      if (null == lock) {
+        channel.close();
+        held.remove(path);
+        return false;
+      }
+      channel.truncate(0);
+      channel.write(ByteBuffer.wrap(ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8)), 0);
+      this.channel = channel;
+      this.lock = lock;
+      logger.debug("Acquired lease " + path);
+      return true;
+    } catch (OverlappingFileLockException e) {
+      channel.close();
+      held.remove(path);
+      return false;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      held.remove(path);
+      throw e;
+    }
+  }
+
+  public synchronized boolean isHeld() {
+    return null != lock;
+  }
+
+  /**
+   * The process ("pid@host") that last held the lease, for diagnostics.
+   */
+  @Nullable
+  public String getHolder() {
+    if (held.contains(file.getAbsolutePath())) return ManagementFactory.getRuntimeMXBean().getName();
+    try {
+      return file.isFile() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (null == channel) return;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.warn("Could not release lease " + file.getAbsolutePath(), e);
+    }
+    channel = null;
+    lock = null;
+    held.remove(file.getAbsolutePath());
+  }
+
+  /**
+   * Removes the lock file, then releases the lease. Only call this once whatever the lease guards is gone.
+   */
+  public synchronized void delete() {
+    if (null != lock && !file.delete()) logger.warn("Could not delete " + file.getAbsolutePath());
+    close();
+  }
+}
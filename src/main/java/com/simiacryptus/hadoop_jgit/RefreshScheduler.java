@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Background refresh of mounted repositories by a fixed pool of workers.
+ * Each mount has exactly one task in a delay queue ordered by next due time, so a slow remote only
+ * occupies one worker and a mount is never refreshed by two workers at once.
+ */
+class RefreshScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+  private final DelayQueue<Task> queue = new DelayQueue<>();
+  private final ConcurrentHashMap<String, RemoteState> remotes = new ConcurrentHashMap<>();
+  private final double jitter;
+  private final double maxBackoffSeconds;
+  private final AtomicInteger running = new AtomicInteger(0);
+  private final AtomicLong refreshLag = new AtomicLong(0);
+  private final AtomicLong maxRefreshLag = new AtomicLong(0);
+
+  public RefreshScheduler(final int threads, final double jitter, final double maxBackoffSeconds) {
+    this.jitter = jitter;
+    this.maxBackoffSeconds = maxBackoffSeconds;
+    ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jgit-refresh-%d").build();
+    for (int i = 0; i < threads; i++) {
+      threadFactory.newThread(this::work).start();
+    }
+  }
+
+  @Nonnull
+  public Task schedule(@Nonnull final String remote, @Nonnull final GitRepoFileSystem fileSystem, @Nonnull final BooleanSupplier dismount) {
+    Task task = new Task(remote, remotes.compute(remote, (key, state) -> (null == state ? new RemoteState() : state).retain()), fileSystem, dismount);
+    task.reschedule(fileSystem.isPinned() ? task.idleDue() : fileSystem.getLastFetch() + delay(fileSystem.getEagerPullPeriod()));
+    return task;
+  }
+
+  /**
+   * Mounts being refreshed, whether waiting or running.
+   */
+  public int getTaskCount() {
+    return queue.size() + running.get();
+  }
+
+  /**
+   * Tasks past their due time that are waiting for a worker.
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (Task task : queue) {
+      if (task.getDelay(TimeUnit.MILLISECONDS) <= 0) depth++;
+    }
+    return depth;
+  }
+
+  /**
+   * How late, in milliseconds, the most recently started task was relative to its due time.
+   */
+  public long getRefreshLag() {
+    return refreshLag.get();
+  }
+
+  public long getMaxRefreshLag() {
+    return maxRefreshLag.get();
+  }
+
+  /**
+   * Remotes with at least one scheduled mount.
+   */
+  public int getRemoteCount() {
+    return remotes.size();
+  }
+
+  public void resetMaxRefreshLag() {
+    maxRefreshLag.set(0);
+  }
+
+  private void work() {
+    while (true) {
+      final Task task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      running.incrementAndGet();
+      try {
+        long lag = System.currentTimeMillis() - task.due;
+        refreshLag.set(lag);
+        maxRefreshLag.accumulateAndGet(lag, Math::max);
+        task.run();
+      } catch (Throwable e) {
+        logger.warn("Error running refresh for " + task.remote, e);
+        task.reschedule(System.currentTimeMillis() + delay(task.fileSystem.getEagerPullPeriod()));
+      } finally {
+        running.decrementAndGet();
+      }
+    }
+  }
+
+  private long delay(final double seconds) {
+    double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return (long) (Math.max(seconds, 0.1) * factor * 1000);
+  }
+
+  public class Task implements Delayed {
+    @Nonnull
+    private final String remote;
+    @Nonnull
+    private final RemoteState state;
+    @Nonnull
+    private final GitRepoFileSystem fileSystem;
+    @Nonnull
+    private final BooleanSupplier dismount;
+    private volatile long due;
+    private volatile boolean cancelled = false;
+    private volatile boolean requested = false;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private Task(@Nonnull final String remote, @Nonnull final RemoteState state, @Nonnull final GitRepoFileSystem fileSystem, @Nonnull final BooleanSupplier dismount) {
+      this.remote = remote;
+      this.state = state;
+      this.fileSystem = fileSystem;
+      this.dismount = dismount;
+    }
+
+    public synchronized void expedite() {
+      requested = true;
+      long now = System.currentTimeMillis();
+      if (cancelled || due <= now) return;
+      if (queue.remove(this)) {
+        due = now;
+        queue.add(this);
+      }
+    }
+
+    public void cancel() {
+      finish();
+      queue.remove(this);
+    }
+
+    /**
+     * Stops rescheduling and drops the remote's backoff state along with its last task.
+     */
+    private void finish() {
+      cancelled = true;
+      if (finished.compareAndSet(false, true)) remotes.computeIfPresent(remote, (key, remoteState) -> remoteState.release() ? null : remoteState);
+    }
+
+    @Override
+    public long getDelay(@Nonnull final TimeUnit unit) {
+      return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(@Nonnull final Delayed o) {
+      return Long.compare(due, ((Task) o).due);
+    }
+
+    private void reschedule(final long due) {
+      if (cancelled) return;
+      this.due = due;
+      queue.add(this);
+    }
+
+    private void run() {
+      if (cancelled) return;
+      if (fileSystem.isDismounted() || (fileSystem.secondsSinceTouch() > fileSystem.getDismountPeriod() && dismount.getAsBoolean())) {
+        finish();
+        return;
+      }
+      if (fileSystem.isPinned()) {
+        reschedule(idleDue());
+        return;
+      }
+      if (!requested && fileSystem.secondsSinceFetch() < fileSystem.getEagerPullPeriod()) {
+        reschedule(next(fileSystem.getLastFetch() + delay(fileSystem.getEagerPullPeriod())));
+        return;
+      }
+      if (state.retryAt > System.currentTimeMillis()) {
+        reschedule(next(state.retryAt));
+        return;
+      }
+      requested = false;
+      try {
+        fileSystem.pull();
+        GitFileSystem.enforceLimits(fileSystem);
+        fileSystem.maintain();
+        state.failures.set(0);
+        reschedule(next(System.currentTimeMillis() + delay(fileSystem.getEagerPullPeriod())));
+      } catch (Throwable e) {
+        int count = state.failures.incrementAndGet();
+        double backoff = Math.min(maxBackoffSeconds, fileSystem.getEagerPullPeriod() * Math.pow(2, Math.min(count, 30)));
+        logger.warn(String.format("Error pulling update for %s (failure %d, retry in %.1fs)", remote, count, backoff), e);
+        state.retryAt = System.currentTimeMillis() + delay(backoff);
+        reschedule(next(state.retryAt));
+      }
+    }
+
+    /**
+     * When the mount next becomes idle long enough to dismount; pinned mounts are only ever woken for this.
+     */
+    private long idleDue() {
+      long period = (long) Math.min(fileSystem.getDismountPeriod() * 1000, Long.MAX_VALUE / 2);
+      long due = fileSystem.getLastTouch() + period;
+      long now = System.currentTimeMillis();
+      return due > now ? due : now + period;
+    }
+
+    private long next(final long fetchDue) {
+      long dismountDue = fileSystem.getLastTouch() + (long) (fileSystem.getDismountPeriod() * 1000);
+      return dismountDue > System.currentTimeMillis() ? Math.min(fetchDue, dismountDue) : fetchDue;
+    }
+  }
+
+  /**
+   * Failure backoff shared by the tasks of one remote; tasks are counted under the map's lock.
+   */
+  private static class RemoteState {
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private volatile long retryAt = 0;
+    private int tasks = 0;
+
+    @Nonnull
+    private RemoteState retain() {
+      tasks++;
+      return this;
+    }
+
+    private boolean release() {
+      return --tasks == 0;
+    }
+  }
+}
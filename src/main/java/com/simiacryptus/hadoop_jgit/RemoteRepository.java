@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FileUtil;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.EmptyProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.FilterSpec;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The object database of one remote, shared by every branch mounted from it.
+ * Branch mounts layer their own refs and snapshots on top; fetches for all mounted branches
+ * are made in a single transport session, so storage and bandwidth scale with unique objects.
+ */
+class RemoteRepository {
+  private static final Logger logger = LoggerFactory.getLogger(RemoteRepository.class);
+  private static final ConcurrentHashMap<String, RemoteRepository> registry = new ConcurrentHashMap<>();
+  private static final ExecutorService maintenanceExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setPriority(Thread.MIN_PRIORITY).setNameFormat("jgit-maintenance-%d").build());
+  @Nonnull
+  private final File directory;
+  @Nonnull
+  private final Repository repository;
+  @Nonnull
+  private final RemoteConfig remoteConfig;
+  private final ConcurrentHashMap<String, Integer> branches = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, MountStatistics> branchStatistics = new ConcurrentHashMap<>();
+  private int references = 0;
+  @Nonnull
+  private volatile Map<String, Ref> advertised = Collections.emptyMap();
+  private volatile long advertisedTime = 0;
+  private final Set<String> advertisedTo = new HashSet<>();
+  private volatile long diskUsage = 0;
+  private volatile int packCount = 0;
+  private volatile long lastMaintenance = System.currentTimeMillis();
+  private final AtomicBoolean maintenancePending = new AtomicBoolean(false);
+
+  private RemoteRepository(@Nonnull final File directory, @Nonnull final URIish uri) throws IOException, URISyntaxException {
+    this.directory = directory;
+    this.repository = new RepositoryBuilder().setGitDir(new File(directory, ".git")).setBare().build();
+    if (!repository.getDirectory().exists()) {
+      if (!directory.mkdirs() && !directory.isDirectory()) {
+        throw new RuntimeException(directory.getAbsolutePath());
+      }
+      try {
+        repository.create(true);
+      } catch (IllegalStateException e) {
+        // Created meanwhile by another process sharing the data directory
+        logger.debug("Repository already created: " + directory.getAbsolutePath());
+      }
+    }
+    this.remoteConfig = getRemoteConfig(uri, repository.getConfig());
+  }
+
+  @Nonnull
+  public static RemoteRepository acquire(@Nonnull final File directory, @Nonnull final URIish uri, @Nonnull final String branch, @Nonnull final MountStatistics statistics) {
+    boolean[] opened = {false};
+    RemoteRepository remote = registry.compute(directory.getAbsolutePath(), (key, existing) -> {
+      RemoteRepository repository = existing;
+      if (null == repository) {
+        try {
+          repository = new RemoteRepository(directory, uri);
+        } catch (IOException | URISyntaxException e) {
+          throw new RuntimeException(e);
+        }
+        opened[0] = true;
+      }
+      repository.references++;
+      return repository;
+    });
+    if (opened[0]) remote.measure();
+    remote.branches.compute(branch, (key, count) -> {
+      remote.branchStatistics.put(key, statistics);
+      return null == count ? 1 : count + 1;
+    });
+    return remote;
+  }
+
+  /**
+   * Drops one mount's reference, closing the repository after the last one and then, if asked, deleting
+   * the whole remote directory before another mount can reopen it.
+   */
+  public void release(@Nonnull final String branch, final boolean delete) {
+    branches.computeIfPresent(branch, (key, count) -> {
+      if (count > 1) return count - 1;
+      branchStatistics.remove(key);
+      return null;
+    });
+    dereference(delete);
+  }
+
+  private boolean retain() {
+    return this == registry.computeIfPresent(directory.getAbsolutePath(), (key, existing) -> {
+      if (existing == this) references++;
+      return existing;
+    });
+  }
+
+  private void dereference(final boolean delete) {
+    registry.computeIfPresent(directory.getAbsolutePath(), (key, existing) -> {
+      if (existing != this || --references > 0) return existing;
+      logger.debug("Closing " + directory.getAbsolutePath());
+      repository.close();
+      if (delete) FileUtil.fullyDelete(directory);
+      return null;
+    });
+  }
+
+  /**
+   * Number of remotes with an open repository.
+   */
+  public static int openCount() {
+    return registry.size();
+  }
+
+  /**
+   * Bytes used by the object databases of all open remotes, as of their last fetch.
+   */
+  public static long totalDiskUsage() {
+    long total = 0;
+    for (RemoteRepository remote : registry.values()) total += remote.diskUsage;
+    return total;
+  }
+
+  public long getDiskUsage() {
+    return diskUsage;
+  }
+
+  /**
+   * Number of pack files in the object database, as of the last fetch or repack.
+   */
+  public int getPackCount() {
+    return packCount;
+  }
+
+  /**
+   * Sizes the object database from its pack directory, which every fetch and collection writes to. Loose objects are
+   * few and left out, so this costs one directory listing rather than a walk of the database.
+   */
+  private void measure() {
+    File[] files = new File(repository.getDirectory(), "objects/pack").listFiles();
+    long bytes = 0;
+    int packs = 0;
+    if (null != files) {
+      for (File file : files) {
+        bytes += file.length();
+        if (file.getName().endsWith(".pack")) packs++;
+      }
+    }
+    diskUsage = bytes;
+    packCount = packs;
+  }
+
+  /**
+   * Queues a check of the object database on the maintenance thread, at most once per interval (seconds), which
+   * garbage collects it into one pack with bitmaps once it holds more than maxPacks packs or maxLoose loose objects.
+   * Collection runs alongside fetches and reads, processing at most rate objects per second (0 for no limit).
+   * Replaced packs younger than packExpire (seconds) are kept, so readers of a snapshot superseded meanwhile still
+   * find objects that are no longer referenced. One process at a time maintains a directory shared by several.
+   */
+  public void maintain(final int maxPacks, final int maxLoose, final double interval, final long rate, final double packExpire, @Nonnull final MountStatistics statistics) {
+    if (maxPacks <= 0 && maxLoose <= 0) return;
+    long now = System.currentTimeMillis();
+    if (now - lastMaintenance < interval * 1000 || !maintenancePending.compareAndSet(false, true)) return;
+    lastMaintenance = now;
+    maintenanceExecutor.execute(() -> {
+      try {
+        if (!retain()) return;
+        try {
+          collect(maxPacks, maxLoose, rate, packExpire, statistics);
+        } finally {
+          dereference(false);
+        }
+      } catch (IOException | ParseException | RuntimeException e) {
+        logger.warn("Maintenance of " + directory.getAbsolutePath() + " failed", e);
+      } finally {
+        lastMaintenance = System.currentTimeMillis();
+        maintenancePending.set(false);
+      }
+    });
+  }
+
+  private void collect(final int maxPacks, final int maxLoose, final long rate, final double packExpire, @Nonnull final MountStatistics statistics) throws IOException, ParseException {
+    // A partial clone lacks blobs that a repack would have to copy
+    if (isPartial()) return;
+    try (RefreshLease lock = new RefreshLease(new File(directory, "maintenance.lock"))) {
+      if (!lock.tryAcquire()) return;
+      GC gc = new GC((FileRepository) repository);
+      GC.RepoStatistics before = gc.getStatistics();
+      if ((maxPacks <= 0 || before.numberOfPackFiles <= maxPacks) && (maxLoose <= 0 || before.numberOfLooseObjects <= maxLoose)) return;
+      PackConfig packConfig = new PackConfig(repository);
+      packConfig.setBuildBitmaps(true);
+      packConfig.setThreads(1);
+      gc.setPackConfig(packConfig);
+      gc.setProgressMonitor(new ThrottledMonitor(rate));
+      gc.setPackExpireAgeMillis((long) (packExpire * 1000));
+      long start = System.currentTimeMillis();
+      try {
+        gc.gc();
+      } catch (MissingObjectException e) {
+        logger.info("Not maintaining " + directory.getAbsolutePath() + ", which has missing objects: " + e.getMessage());
+        markPartial();
+        return;
+      }
+      long millis = System.currentTimeMillis() - start;
+      statistics.maintained(millis);
+      measure();
+      logger.info(String.format("Collected %s from %d packs and %d loose objects into %d packs in %d ms",
+          directory.getAbsolutePath(), before.numberOfPackFiles, before.numberOfLooseObjects, packCount, millis));
+    }
+  }
+
+  private boolean isPartial() {
+    return repository.getConfig().getBoolean("remote", "origin", "promisor", false);
+  }
+
+  /**
+   * Records, as git does, that objects may be missing because the remote was fetched with a filter.
+   */
+  private synchronized void markPartial() throws IOException {
+    if (isPartial()) return;
+    StoredConfig config = repository.getConfig();
+    config.setBoolean("remote", "origin", "promisor", true);
+    config.save();
+  }
+
+  @Nonnull
+  public File getDirectory() {
+    return directory;
+  }
+
+  @Nonnull
+  public Repository getRepository() {
+    return repository;
+  }
+
+  @Nonnull
+  public RemoteConfig getRemoteConfig() {
+    return remoteConfig;
+  }
+
+  @Nonnull
+  public String getUri() {
+    return remoteConfig.getURIs().get(0).toString();
+  }
+
+  /**
+   * Refs advertised by the remote, reusing an advertisement younger than maxAge milliseconds
+   * so that branches refreshed together share one round trip. A branch never reuses an advertisement it has already seen.
+   */
+  @Nonnull
+  public synchronized Map<String, Ref> lsRemote(@Nonnull final String branch, @Nullable final CredentialsProvider credentials, final long maxAge, @Nonnull final MountStatistics statistics) throws IOException {
+    long now = System.currentTimeMillis();
+    if (now - advertisedTime < maxAge && advertisedTo.add(branch)) return advertised;
+    try (Transport transport = Transport.open(repository, remoteConfig)) {
+      if (null != credentials) transport.setCredentialsProvider(credentials);
+      try (FetchConnection connection = transport.openFetch()) {
+        advertised = connection.getRefsMap();
+      }
+    }
+    advertisedTime = now;
+    advertisedTo.clear();
+    advertisedTo.add(branch);
+    statistics.listedRemote(System.currentTimeMillis() - now);
+    return advertised;
+  }
+
+  /**
+   * Fetches every mounted branch whose advertised tip is missing locally, in one session.
+   * Returns immediately when a concurrent fetch already brought in the requested commit.
+   * The fetch is recorded against each branch it was made for, with the objects and bytes received shared evenly.
+   */
+  @Nonnull
+  public synchronized Map<String, Ref> fetch(@Nonnull final String branch, @Nullable final CredentialsProvider credentials, @Nonnull final FilterSpec filter, @Nullable final ObjectId want, @Nonnull final MountStatistics statistics) throws IOException {
+    if (null != want && repository.getObjectDatabase().has(want)) return advertised;
+    List<RefSpec> specs = new ArrayList<>();
+    Set<MountStatistics> fetchedFor = new LinkedHashSet<>();
+    for (String mounted : branches.keySet()) {
+      if (ParsePath.isPinned(mounted)) continue;
+      Ref ref = advertised.get(Constants.R_HEADS + mounted);
+      if (null == ref && null != want) ref = advertised.get(Constants.HEAD);
+      if (null != ref && repository.getObjectDatabase().has(ref.getObjectId())) continue;
+      String source = null == ref || ref.getName().startsWith(Constants.R_HEADS) ? Constants.R_HEADS + mounted : ref.getName();
+      specs.add(new RefSpec().setForceUpdate(true).setSourceDestination(source, Constants.R_REMOTES + "origin/" + mounted));
+      fetchedFor.add(branchStatistics.getOrDefault(mounted, statistics));
+    }
+    if (specs.isEmpty()) return advertised;
+    try (Transport transport = Transport.open(repository, remoteConfig)) {
+      if (null != credentials) transport.setCredentialsProvider(credentials);
+      transport.setCheckFetchedObjects(false);
+      transport.setRemoveDeletedRefs(false);
+      transport.setDryRun(false);
+      transport.setTagOpt(TagOpt.FETCH_TAGS);
+      transport.setFetchThin(false);
+      if (!filter.isNoOp()) {
+        transport.setFilterSpec(filter);
+        markPartial();
+      }
+      ReceiveMonitor monitor = new ReceiveMonitor();
+      long start = System.currentTimeMillis();
+      long packBytes = packBytes();
+      final FetchResult result;
+      try {
+        result = transport.fetch(monitor, specs);
+      } catch (IOException | RuntimeException e) {
+        for (MountStatistics target : fetchedFor) target.fetchFailed();
+        throw e;
+      }
+      long millis = System.currentTimeMillis() - start;
+      long bytes = Math.max(0, packBytes() - packBytes);
+      for (MountStatistics target : fetchedFor) {
+        target.fetched(millis, monitor.objects / fetchedFor.size(), bytes / fetchedFor.size());
+      }
+      measure();
+      logger.debug(String.format("Fetched %d branches from %s: %s", specs.size(), result.getURI(), result.getMessages()));
+      Map<String, Ref> refs = new HashMap<>();
+      for (Ref ref : result.getAdvertisedRefs()) {
+        logger.debug(String.format("Remote Ref: %s = %s", ref.getName(), ref.getObjectId()));
+        refs.put(ref.getName(), ref);
+      }
+      advertised = Collections.unmodifiableMap(refs);
+      advertisedTime = System.currentTimeMillis();
+      advertisedTo.clear();
+      advertisedTo.add(branch);
+      return advertised;
+    }
+  }
+
+  /**
+   * Resolves a tag name or full commit id, fetching it only when the shared database does not have it yet.
+   * Tags are fetched by name; commits by id, falling back to all branches when the remote refuses unadvertised ids.
+   * Tags and commits never move, so once present they are never fetched again.
+   */
+  @Nonnull
+  public synchronized ObjectId fetchRevision(@Nonnull final String revision, @Nullable final CredentialsProvider credentials, @Nonnull final FilterSpec filter, @Nonnull final MountStatistics statistics) throws IOException {
+    ObjectId local = findRevision(revision);
+    if (null != local) return local;
+    if (ObjectId.isId(revision)) {
+      try {
+        transfer(Collections.singletonList(new RefSpec(revision)), credentials, filter, statistics);
+      } catch (TransportException e) {
+        logger.debug(String.format("Fetch of %s by id refused, fetching all branches", revision), e);
+        transfer(remoteConfig.getFetchRefSpecs(), credentials, filter, statistics);
+      }
+    } else {
+      String name = Constants.R_TAGS + revision;
+      transfer(Collections.singletonList(new RefSpec().setForceUpdate(true).setSourceDestination(name, name)), credentials, filter, statistics);
+    }
+    ObjectId fetched = findRevision(revision);
+    if (null == fetched) throw new FileNotFoundException(String.format("Revision %s not found in %s", revision, getUri()));
+    return fetched;
+  }
+
+  @Nullable
+  private ObjectId findRevision(@Nonnull final String revision) throws IOException {
+    if (ObjectId.isId(revision)) {
+      ObjectId id = ObjectId.fromString(revision);
+      return repository.getObjectDatabase().has(id) ? id : null;
+    }
+    Ref tag = repository.exactRef(Constants.R_TAGS + revision);
+    return null == tag ? null : tag.getObjectId();
+  }
+
+  private void transfer(@Nonnull final Collection<RefSpec> specs, @Nullable final CredentialsProvider credentials, @Nonnull final FilterSpec filter, @Nonnull final MountStatistics statistics) throws IOException {
+    try (Transport transport = Transport.open(repository, remoteConfig)) {
+      if (null != credentials) transport.setCredentialsProvider(credentials);
+      transport.setCheckFetchedObjects(false);
+      transport.setRemoveDeletedRefs(false);
+      transport.setTagOpt(TagOpt.NO_TAGS);
+      if (!filter.isNoOp()) {
+        transport.setFilterSpec(filter);
+        markPartial();
+      }
+      ReceiveMonitor monitor = new ReceiveMonitor();
+      long start = System.currentTimeMillis();
+      long packBytes = packBytes();
+      try {
+        transport.fetch(monitor, specs);
+      } catch (IOException | RuntimeException e) {
+        statistics.fetchFailed();
+        throw e;
+      }
+      statistics.fetched(System.currentTimeMillis() - start, monitor.objects, Math.max(0, packBytes() - packBytes));
+      measure();
+      logger.debug(String.format("Fetched %s from %s", specs, transport.getURI()));
+    }
+  }
+
+  /**
+   * Points the branch's remote-tracking ref at the commit it has checked out, so objects reached
+   * through the shared database without a fetch of that branch are still referenced.
+   */
+  public void updateRef(@Nonnull final String branch, @Nonnull final ObjectId commit) throws IOException {
+    RefUpdate update = repository.updateRef(Constants.R_REMOTES + "origin/" + branch);
+    update.setNewObjectId(commit);
+    update.setForceUpdate(true);
+    RefUpdate.Result result = update.update();
+    if (RefUpdate.Result.LOCK_FAILURE == result || RefUpdate.Result.IO_FAILURE == result) {
+      logger.warn(String.format("Could not update %s: %s", update.getName(), result));
+    }
+  }
+
+  public void fetchBlobs(@Nullable final CredentialsProvider credentials, @Nonnull final Collection<ObjectId> blobs, @Nonnull final MountStatistics statistics) throws IOException {
+    List<RefSpec> wants = new ArrayList<>();
+    for (ObjectId blob : blobs) {
+      if (!repository.getObjectDatabase().has(blob)) wants.add(new RefSpec(blob.name()));
+    }
+    if (wants.isEmpty()) return;
+    try (Transport transport = Transport.open(repository, remoteConfig)) {
+      if (null != credentials) transport.setCredentialsProvider(credentials);
+      transport.setCheckFetchedObjects(false);
+      transport.setTagOpt(TagOpt.NO_TAGS);
+      ReceiveMonitor monitor = new ReceiveMonitor();
+      long start = System.currentTimeMillis();
+      long packBytes = packBytes();
+      try {
+        transport.fetch(monitor, wants);
+      } catch (IOException | RuntimeException e) {
+        statistics.fetchFailed();
+        throw e;
+      }
+      statistics.fetched(System.currentTimeMillis() - start, monitor.objects, Math.max(0, packBytes() - packBytes));
+      measure();
+      logger.debug(String.format("Fetched %d blobs from %s", wants.size(), transport.getURI()));
+    }
+  }
+
+  private long packBytes() {
+    File[] files = new File(repository.getDirectory(), "objects/pack").listFiles();
+    long bytes = 0;
+    if (null != files) {
+      for (File file : files) {
+        if (file.getName().endsWith(".pack")) bytes += file.length();
+      }
+    }
+    return bytes;
+  }
+
+  @Nonnull
+  private static RemoteConfig getRemoteConfig(final URIish uri, @Nonnull final StoredConfig config) throws URISyntaxException, IOException {
+    RemoteConfig remote = new RemoteConfig(config, "origin");
+    remote.addFetchRefSpec(new RefSpec().setForceUpdate(true).setSourceDestination("refs/heads/*", "refs/remotes/origin/*"));
+    remote.addURI(uri);
+    remote.update(config);
+    config.save();
+    return remote;
+  }
+
+  /**
+   * Sleeps in progress updates so that no more than rate units of work are done per second.
+   */
+  private static class ThrottledMonitor extends EmptyProgressMonitor {
+    private final long rate;
+    private final long start = System.nanoTime();
+    private long work = 0;
+
+    private ThrottledMonitor(final long rate) {
+      this.rate = rate;
+    }
+
+    @Override
+    public void update(final int completed) {
+      if (rate <= 0) return;
+      work += completed;
+      long wait = start + (long) (work * 1e9 / rate) - System.nanoTime();
+      if (wait < TimeUnit.MILLISECONDS.toNanos(10)) return;
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return Thread.currentThread().isInterrupted();
+    }
+  }
+
+  private static class ReceiveMonitor extends EmptyProgressMonitor {
+    private final String receiving = JGitText.get().receivingObjects;
+    private boolean counting = false;
+    private long objects = 0;
+
+    @Override
+    public void beginTask(final String title, final int totalWork) {
+      counting = receiving.equals(title);
+    }
+
+    @Override
+    public void update(final int completed) {
+      if (counting) objects += completed;
+    }
+  }
+}
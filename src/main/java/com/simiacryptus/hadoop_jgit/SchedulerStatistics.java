@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.GlobalStorageStatistics;
+import org.apache.hadoop.fs.StorageStatistics;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Gauges of the background refresh workers shared by all mounts in the JVM.
+ * Registered with {@link GlobalStorageStatistics} as "jgit:scheduler" and, when enabled, published as the metrics2
+ * source "GitRefreshScheduler".
+ */
+public class SchedulerStatistics extends StorageStatistics implements MetricsSource {
+  public static final String NAME = "jgit:scheduler";
+  public static final String TASKS = "tasks";
+  public static final String REMOTES = "remotes";
+  public static final String QUEUE_DEPTH = "queue.depth";
+  public static final String REFRESH_LAG = "refresh.lag.ms";
+  public static final String MAX_REFRESH_LAG = "refresh.lag.max.ms";
+  private static final Logger logger = LoggerFactory.getLogger(SchedulerStatistics.class);
+  private static final String[] KEYS = {TASKS, REMOTES, QUEUE_DEPTH, REFRESH_LAG, MAX_REFRESH_LAG};
+  @Nonnull
+  private final RefreshScheduler scheduler;
+
+  private SchedulerStatistics(@Nonnull final RefreshScheduler scheduler) {
+    super(NAME);
+    this.scheduler = scheduler;
+  }
+
+  static void register(@Nonnull final RefreshScheduler scheduler, final boolean publish) {
+    SchedulerStatistics statistics = (SchedulerStatistics) GlobalStorageStatistics.INSTANCE.put(NAME, () -> new SchedulerStatistics(scheduler));
+    if (publish && statistics.scheduler == scheduler) {
+      try {
+        DefaultMetricsSystem.instance().register("GitRefreshScheduler", "Git mount refresh workers", statistics);
+      } catch (RuntimeException e) {
+        logger.warn("Could not register metrics source for the refresh scheduler", e);
+      }
+    }
+  }
+
+  @Override
+  public String getScheme() {
+    return "git";
+  }
+
+  @Override
+  public Iterator<LongStatistic> getLongStatistics() {
+    LongStatistic[] statistics = new LongStatistic[KEYS.length];
+    for (int i = 0; i < KEYS.length; i++) statistics[i] = new LongStatistic(KEYS[i], getLong(KEYS[i]));
+    return Arrays.asList(statistics).iterator();
+  }
+
+  @Override
+  public Long getLong(final String key) {
+    switch (key) {
+      case TASKS:
+        return (long) scheduler.getTaskCount();
+      case REMOTES:
+        return (long) scheduler.getRemoteCount();
+      case QUEUE_DEPTH:
+        return (long) scheduler.getQueueDepth();
+      case REFRESH_LAG:
+        return scheduler.getRefreshLag();
+      case MAX_REFRESH_LAG:
+        return scheduler.getMaxRefreshLag();
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public boolean isTracked(final String key) {
+    return Arrays.asList(KEYS).contains(key);
+  }
+
+  @Override
+  public void reset() {
+    scheduler.resetMaxRefreshLag();
+  }
+
+  @Override
+  public void getMetrics(final MetricsCollector collector, final boolean all) {
+    MetricsRecordBuilder builder = collector.addRecord("GitRefreshScheduler").setContext("jgit");
+    builder.addGauge(Interns.info("tasks", "Mounts being refreshed"), scheduler.getTaskCount());
+    builder.addGauge(Interns.info("remotes", "Remotes with a scheduled mount"), scheduler.getRemoteCount());
+    builder.addGauge(Interns.info("queue_depth", "Refreshes past due and waiting for a worker"), scheduler.getQueueDepth());
+    builder.addGauge(Interns.info("refresh_lag_ms", "Lateness of the most recently started refresh"), scheduler.getRefreshLag());
+    builder.addGauge(Interns.info("refresh_lag_max_ms", "Greatest lateness of a refresh since the last reset"), scheduler.getMaxRefreshLag());
+  }
+}
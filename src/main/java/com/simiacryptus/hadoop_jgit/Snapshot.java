@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable view of one commit: its tree index plus, in worktree mode, a checkout directory.
+ * The mount holds one reference while the snapshot is current and each open stream holds another.
+ * A private checkout directory belongs to this snapshot alone: it is never reused, is locked for as long as it exists,
+ * and is deleted once the snapshot has been replaced and the last stream is closed; {@link #reclaim} removes those
+ * left behind by processes that died. A checkout shared with other processes is named by its commit and reclaimed
+ * by the refreshing process with {@link #sweep}.
+ * A sparse checkout only holds the files written so far; others are materialized on first use.
+ */
+class Snapshot {
+  private static final Logger logger = LoggerFactory.getLogger(Snapshot.class);
+  private static final Pattern SHARED_CHECKOUT = Pattern.compile("[0-9a-f]{40}(-sparse)?");
+  @Nonnull
+  private final TreeIndex index;
+  @Nullable
+  private final File worktree;
+  private final boolean shared;
+  @Nullable
+  private final Set<String> materialized;
+  @Nullable
+  private final RefreshLease owner;
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  /**
+   * @param materialized paths already written to a sparse worktree, or null if the worktree is complete
+   * @param owner        the lock on a private worktree from {@link #claim}, or null if the worktree is shared or absent
+   */
+  public Snapshot(@Nonnull final TreeIndex index, @Nullable final File worktree, final boolean shared, @Nullable final Set<String> materialized, @Nullable final RefreshLease owner) {
+    this.index = index;
+    this.worktree = worktree;
+    this.shared = shared;
+    this.materialized = materialized;
+    this.owner = owner;
+  }
+
+  /**
+   * The directory to check a commit out to: named by the commit when shared, so that processes adopt each other's
+   * checkouts, and otherwise unique to the caller, who must {@link #claim} it before writing to it.
+   */
+  @Nonnull
+  public static File directory(@Nonnull final File snapshotsDir, @Nonnull final ObjectId commitId, final boolean sparse, final boolean shared) {
+    String name = commitId.name() + (sparse ? "-sparse" : "");
+    return new File(snapshotsDir, shared ? name : name + "-" + UUID.randomUUID());
+  }
+
+  /**
+   * Locks a private checkout directory for the lifetime of the snapshot that will own it.
+   */
+  @Nonnull
+  public static RefreshLease claim(@Nonnull final File target) throws IOException {
+    RefreshLease owner = new RefreshLease(lockFile(target));
+    if (!owner.tryAcquire()) throw new IOException("Could not lock " + target.getAbsolutePath());
+    return owner;
+  }
+
+  /**
+   * Deletes a private checkout directory that never became a snapshot's, and its lock.
+   */
+  public static void discard(@Nonnull final File target, @Nonnull final RefreshLease owner) {
+    FileUtil.fullyDelete(target);
+    owner.delete();
+  }
+
+  /**
+   * Deletes the private checkouts whose owner has gone, i.e. whose lock can be taken. Shared checkouts have no lock
+   * and are left to {@link #sweep}.
+   */
+  public static void reclaim(@Nonnull final File snapshotsDir) {
+    File[] children = snapshotsDir.listFiles();
+    if (null == children) return;
+    for (File child : children) {
+      if (!child.isFile() || !child.getName().endsWith(".lock")) continue;
+      File target = new File(snapshotsDir, child.getName().substring(0, child.getName().length() - ".lock".length()));
+      RefreshLease owner = new RefreshLease(child);
+      try {
+        if (!owner.tryAcquire()) continue;
+        logger.debug("Reclaiming abandoned snapshot " + target.getAbsolutePath());
+        discard(target, owner);
+      } catch (IOException e) {
+        logger.warn("Could not reclaim " + target.getAbsolutePath(), e);
+      } finally {
+        owner.close();
+      }
+    }
+  }
+
+  @Nonnull
+  private static File lockFile(@Nonnull final File target) {
+    return new File(target.getParentFile(), target.getName() + ".lock");
+  }
+
+  /**
+   * Writes a complete checkout of the index to target. A shared target is reused if another process has already
+   * written it, and is otherwise staged and renamed into place; a private target is claimed by the caller and written
+   * in place.
+   */
+  @Nonnull
+  public static File checkout(@Nonnull final ObjectReader reader, @Nonnull final TreeIndex index, @Nullable final Snapshot previous, @Nonnull final File target, final boolean shared) throws IOException {
+    if (!shared) {
+      if (!target.mkdirs()) throw new IOException("Could not create " + target.getAbsolutePath());
+      write(reader, index, previous, target);
+      logger.debug(String.format("Checked out %s to %s", index.getCommitId().name(), target.getAbsolutePath()));
+      return target;
+    }
+    if (target.isDirectory()) return target;
+    File staging = new File(target.getParentFile(), target.getName() + ".tmp-" + System.nanoTime());
+    if (!staging.mkdirs()) throw new IOException("Could not create " + staging.getAbsolutePath());
+    try {
+      write(reader, index, previous, staging);
+      if (!staging.renameTo(target) && !target.isDirectory()) {
+        throw new IOException("Could not move " + staging.getAbsolutePath() + " to " + target.getAbsolutePath());
+      }
+    } finally {
+      if (staging.exists()) FileUtil.fullyDelete(staging);
+    }
+    logger.debug(String.format("Checked out %s to %s", index.getCommitId().name(), target.getAbsolutePath()));
+    return target;
+  }
+
+  private static void write(@Nonnull final ObjectReader reader, @Nonnull final TreeIndex index, @Nullable final Snapshot previous, @Nonnull final File root) throws IOException {
+    for (String path : index.paths()) {
+      TreeIndex.Entry entry = index.get(path);
+      assert null != entry;
+      if (path.isEmpty()) continue;
+      File file = new File(root, path);
+      if (entry.isDirectory()) {
+        file.mkdirs();
+        continue;
+      }
+      file.getParentFile().mkdirs();
+      write(reader, entry, previous, file);
+    }
+  }
+
+  /**
+   * The files of a sparse checkout carried over to a new commit: those below the configured prefixes plus those
+   * the previous snapshot had materialized. Unresolved entries of a partial clone must be fetched before
+   * {@link #checkoutSparse}.
+   */
+  @Nonnull
+  public static List<TreeIndex.Entry> sparseEntries(@Nonnull final TreeIndex index, @Nullable final Snapshot previous, @Nonnull final Collection<String> prefixes) {
+    Map<String, TreeIndex.Entry> entries = new LinkedHashMap<>();
+    for (String prefix : prefixes) {
+      TreeIndex.Entry entry = index.get(prefix);
+      if (null == entry) continue;
+      if (!entry.isDirectory()) entries.put(prefix, entry);
+      for (Iterator<TreeIndex.Entry> iterator = index.walk(prefix, true); iterator.hasNext(); ) {
+        TreeIndex.Entry child = iterator.next();
+        if (!child.isDirectory()) entries.put(child.getPath(), child);
+      }
+    }
+    if (null != previous && null != previous.materialized) {
+      for (String path : previous.materialized) {
+        TreeIndex.Entry entry = index.get(path);
+        if (null != entry && !entry.isDirectory()) entries.put(path, entry);
+      }
+    }
+    return new ArrayList<>(entries.values());
+  }
+
+  /**
+   * Writes the given entries of a commit to a sparse checkout directory, adding them to materialized.
+   * Files whose blob is unchanged since the previous snapshot are hard linked, so a refresh only writes what changed.
+   */
+  @Nonnull
+  public static File checkoutSparse(@Nonnull final ObjectReader reader, @Nonnull final TreeIndex index, @Nonnull final List<TreeIndex.Entry> entries, @Nullable final Snapshot previous, @Nonnull final File target, @Nonnull final Set<String> materialized) throws IOException {
+    if (!target.mkdirs() && !target.isDirectory()) throw new IOException("Could not create " + target.getAbsolutePath());
+    for (TreeIndex.Entry entry : entries) materialize(reader, entry, previous, target, materialized);
+    logger.debug(String.format("Checked out %d files of %s to %s", entries.size(), index.getCommitId().name(), target.getAbsolutePath()));
+    return target;
+  }
+
+  /**
+   * The file of an entry in this snapshot's worktree, written first if this is a sparse checkout that lacks it.
+   */
+  @Nonnull
+  public File materialize(@Nonnull final ObjectReader reader, @Nonnull final TreeIndex.Entry entry) throws IOException {
+    if (null == worktree) throw new IllegalStateException("No worktree for " + getCommitId().name());
+    if (null == materialized) return new File(worktree, entry.getPath());
+    return materialize(reader, entry, null, worktree, materialized);
+  }
+
+  @Nonnull
+  private static File materialize(@Nonnull final ObjectReader reader, @Nonnull final TreeIndex.Entry entry, @Nullable final Snapshot previous, @Nonnull final File worktree, @Nonnull final Set<String> materialized) throws IOException {
+    File file = new File(worktree, entry.getPath());
+    if (materialized.contains(entry.getPath())) return file;
+    if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+      mkdirs(worktree, TreeIndex.parent(entry.getPath()));
+      File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp-" + System.nanoTime());
+      try {
+        write(reader, entry, previous, temp);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        // Materialized concurrently by another stream or process
+      } catch (IOException e) {
+        if (!worktree.isDirectory()) throw (IOException) new NoSuchFileException(worktree.getAbsolutePath()).initCause(e);
+        throw e;
+      } finally {
+        Files.deleteIfExists(temp.toPath());
+      }
+    }
+    materialized.add(entry.getPath());
+    return file;
+  }
+
+  /**
+   * Creates the directories of a path below a worktree one level at a time, never the worktree itself: if another
+   * process has reclaimed it, this throws NoSuchFileException rather than bringing back a partial tree.
+   */
+  private static void mkdirs(@Nonnull final File worktree, @Nonnull final String path) throws NoSuchFileException {
+    if (!worktree.isDirectory()) throw new NoSuchFileException(worktree.getAbsolutePath());
+    File directory = worktree;
+    for (String name : path.split("/")) {
+      if (name.isEmpty()) continue;
+      directory = new File(directory, name);
+      if (!directory.mkdir() && !directory.isDirectory()) throw new NoSuchFileException(directory.getAbsolutePath());
+    }
+  }
+
+  private static void write(@Nonnull final ObjectReader reader, @Nonnull final TreeIndex.Entry entry, @Nullable final Snapshot previous, @Nonnull final File file) throws IOException {
+    if (null != entry.getSymlink()) {
+      Files.createSymbolicLink(file.toPath(), Paths.get(entry.getSymlink()));
+    } else if (!link(previous, entry, file)) {
+      try (OutputStream out = new FileOutputStream(file)) {
+        reader.open(entry.getObjectId(), Constants.OBJ_BLOB).copyTo(out);
+      }
+      if (FileMode.EXECUTABLE_FILE.equals(entry.getFileMode())) file.setExecutable(true);
+    }
+  }
+
+  private static boolean link(@Nullable final Snapshot previous, @Nonnull final TreeIndex.Entry entry, @Nonnull final File file) {
+    if (null == previous || null == previous.getWorktree()) return false;
+    TreeIndex.Entry previousEntry = previous.getIndex().get(entry.getPath());
+    if (null == previousEntry || previousEntry.getFileMode() != entry.getFileMode()) return false;
+    if (!previousEntry.getObjectId().equals(entry.getObjectId())) return false;
+    try {
+      Files.createLink(file.toPath(), new File(previous.getWorktree(), entry.getPath()).toPath());
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  @Nonnull
+  public TreeIndex getIndex() {
+    return index;
+  }
+
+  @Nonnull
+  public ObjectId getCommitId() {
+    return index.getCommitId();
+  }
+
+  public boolean isSparse() {
+    return null != materialized;
+  }
+
+  @Nullable
+  public File getWorktree() {
+    return worktree;
+  }
+
+  public boolean retain() {
+    while (true) {
+      int count = references.get();
+      if (count <= 0) return false;
+      if (references.compareAndSet(count, count + 1)) return true;
+    }
+  }
+
+  public void release() {
+    if (references.decrementAndGet() == 0 && null != worktree && !shared) {
+      logger.debug("Reclaiming snapshot " + worktree.getAbsolutePath());
+      FileUtil.fullyDelete(worktree);
+      if (null != owner) owner.delete();
+    }
+  }
+
+  /**
+   * Gives up the lock on a private worktree without deleting it, so that the next mount can link its checkout from it
+   * and then {@link #reclaim} it.
+   */
+  public void abandon() {
+    if (null != owner) owner.close();
+  }
+
+  /**
+   * Deletes shared checkouts of commits other than the current one that were superseded more than graceMillis ago,
+   * giving other processes that long to move on; one still opening files from a reclaimed checkout falls back to
+   * the object database. Only complete and sparse checkouts named by commit are considered: another process's
+   * staging directory and private, locked checkouts are left alone.
+   */
+  public static void sweep(@Nonnull final File snapshotsDir, @Nonnull final Snapshot current, final long graceMillis) {
+    long now = System.currentTimeMillis();
+    File[] children = snapshotsDir.listFiles();
+    if (null == children) return;
+    for (File child : children) {
+      if (!child.isDirectory() || !SHARED_CHECKOUT.matcher(child.getName()).matches()) continue;
+      if (child.getName().startsWith(current.getCommitId().name()) || now - child.lastModified() <= graceMillis) continue;
+      logger.debug("Reclaiming shared snapshot " + child.getAbsolutePath());
+      FileUtil.fullyDelete(child);
+    }
+  }
+
+  /**
+   * Stamps a shared checkout as superseded now, starting its grace period.
+   */
+  public void supersede() {
+    if (shared && null != worktree) worktree.setLastModified(System.currentTimeMillis());
+  }
+}
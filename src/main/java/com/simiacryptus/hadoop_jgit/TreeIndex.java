@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable path index of a single commit, built once per pull so metadata calls never touch the disk.
+ * Indexes of successive commits share the entries of unchanged subtrees.
+ */
+class TreeIndex {
+  @Nonnull
+  private final ObjectId commitId;
+  private final long commitTime;
+  @Nonnull
+  private final Map<String, Entry> entries;
+  @Nonnull
+  private final Map<String, List<Entry>> children;
+  @Nullable
+  private final HistoryIndex history;
+
+  private TreeIndex(@Nonnull final ObjectId commitId, final long commitTime, @Nonnull final Map<String, Entry> entries, @Nonnull final Map<String, List<Entry>> children, @Nullable final HistoryIndex history) {
+    this.commitId = commitId;
+    this.commitTime = commitTime;
+    this.entries = entries;
+    this.children = children;
+    this.history = history;
+  }
+
+  /**
+   * Indexes a commit. Subtrees whose tree id is unchanged at the same path in the previous index are taken over from
+   * it without being read, as are its entries for unchanged blobs, so a pull only reads and sizes what changed.
+   */
+  @Nonnull
+  public static TreeIndex build(@Nonnull final ObjectReader reader, @Nonnull final RevCommit commit, @Nullable final TreeIndex previous, final boolean partial) throws IOException {
+    long commitTime = commit.getCommitTime() * 1000L;
+    if (null != previous && previous.entries.get("").getObjectId().equals(commit.getTree())) {
+      return new TreeIndex(commit.getId().copy(), commitTime, previous.entries, previous.children, null);
+    }
+    Map<String, Entry> entries = new HashMap<>();
+    Map<String, List<Entry>> children = new HashMap<>();
+    Map<String, List<Entry>> reused = new HashMap<>();
+    Entry root = new Entry("", FileMode.TREE, commit.getTree().copy(), 0);
+    entries.put(root.getPath(), root);
+    children.put(root.getPath(), new ArrayList<>());
+    try (TreeWalk treeWalk = new TreeWalk(reader)) {
+      treeWalk.addTree(commit.getTree());
+      treeWalk.setRecursive(false);
+      while (treeWalk.next()) {
+        String path = treeWalk.getPathString();
+        FileMode fileMode = treeWalk.getFileMode(0);
+        ObjectId objectId = treeWalk.getObjectId(0);
+        Entry prior = null == previous ? null : previous.entries.get(path);
+        Entry entry;
+        if (null != prior && prior.getFileMode().equals(fileMode) && prior.getObjectId().equals(objectId)) {
+          entry = prior;
+          if (entry.isDirectory()) {
+            previous.copySubtree(path, entries, reused);
+          } else if (!entry.isResolved() && (!partial || reader.has(entry.getObjectId()))) {
+            entry.resolve(reader);
+          }
+        } else {
+          boolean directory = FileMode.TREE.equals(fileMode) || FileMode.GITLINK.equals(fileMode);
+          entry = new Entry(path, fileMode, objectId, directory ? 0 : Entry.UNRESOLVED);
+          if (directory) {
+            children.put(path, new ArrayList<>());
+            if (FileMode.TREE.equals(fileMode)) treeWalk.enterSubtree();
+          } else if (!partial || reader.has(objectId)) {
+            entry.resolve(reader);
+          }
+        }
+        entries.put(path, entry);
+        children.get(parent(path)).add(entry);
+      }
+    }
+    children.replaceAll((path, list) -> Collections.unmodifiableList(list));
+    children.putAll(reused);
+    return new TreeIndex(commit.getId().copy(), commitTime, entries, children, null);
+  }
+
+  /**
+   * Adds the entries below a directory, and the already unmodifiable child lists of it and its subdirectories.
+   */
+  private void copySubtree(@Nonnull final String path, @Nonnull final Map<String, Entry> entries, @Nonnull final Map<String, List<Entry>> lists) {
+    List<Entry> list = children.get(path);
+    if (null == list) return;
+    lists.put(path, list);
+    for (Entry entry : list) {
+      entries.put(entry.getPath(), entry);
+      if (entry.isDirectory()) copySubtree(entry.getPath(), entries, lists);
+    }
+  }
+
+  /**
+   * Entries whose blob was missing from a partial clone when the index was built.
+   */
+  @Nonnull
+  public List<Entry> unresolved() {
+    List<Entry> list = new ArrayList<>();
+    for (Entry entry : entries.values()) {
+      if (!entry.isResolved()) list.add(entry);
+    }
+    return list;
+  }
+
+  @Nonnull
+  public static String parent(@Nonnull final String path) {
+    int index = path.lastIndexOf('/');
+    return index < 0 ? "" : path.substring(0, index);
+  }
+
+  @Nonnull
+  public static String name(@Nonnull final String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  @Nonnull
+  public ObjectId getCommitId() {
+    return commitId;
+  }
+
+  public long getCommitTime() {
+    return commitTime;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  @Nonnull
+  public Set<String> paths() {
+    return Collections.unmodifiableSet(entries.keySet());
+  }
+
+  @Nullable
+  public HistoryIndex getHistory() {
+    return history;
+  }
+
+  @Nonnull
+  public TreeIndex withHistory(@Nullable final HistoryIndex history) {
+    return new TreeIndex(commitId, commitTime, entries, children, history);
+  }
+
+  public long getModificationTime(@Nonnull final String path) {
+    return null == history ? commitTime : history.get(path);
+  }
+
+  @Nullable
+  public Entry get(@Nonnull final String path) {
+    return entries.get(path);
+  }
+
+  @Nullable
+  public List<Entry> list(@Nonnull final String path) {
+    return children.get(path);
+  }
+
+  /**
+   * Lazily iterates the entries below a directory in tree order, descending depth first into subdirectories
+   * when recursive. Directories are returned before their contents.
+   */
+  @Nonnull
+  public Iterator<Entry> walk(@Nonnull final String path, final boolean recursive) {
+    List<Entry> list = children.get(path);
+    if (null == list) return Collections.emptyIterator();
+    if (!recursive) return list.iterator();
+    Deque<Iterator<Entry>> stack = new ArrayDeque<>();
+    stack.push(list.iterator());
+    return new Iterator<Entry>() {
+      @Override
+      public boolean hasNext() {
+        while (!stack.isEmpty()) {
+          if (stack.peek().hasNext()) return true;
+          stack.pop();
+        }
+        return false;
+      }
+
+      @Override
+      public Entry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Entry entry = stack.peek().next();
+        List<Entry> subdirectory = children.get(entry.getPath());
+        if (null != subdirectory && !subdirectory.isEmpty()) stack.push(subdirectory.iterator());
+        return entry;
+      }
+    };
+  }
+
+  public static class Entry {
+    public static final long UNRESOLVED = -1;
+    @Nonnull
+    private final String path;
+    @Nonnull
+    private final FileMode fileMode;
+    @Nonnull
+    private final ObjectId objectId;
+    private volatile long size;
+    @Nullable
+    private volatile String symlink;
+
+    public Entry(@Nonnull final String path, @Nonnull final FileMode fileMode, @Nonnull final ObjectId objectId, final long size) {
+      this.path = path;
+      this.fileMode = fileMode;
+      this.objectId = objectId;
+      this.size = size;
+    }
+
+    @Nonnull
+    public String getPath() {
+      return path;
+    }
+
+    @Nonnull
+    public FileMode getFileMode() {
+      return fileMode;
+    }
+
+    @Nonnull
+    public ObjectId getObjectId() {
+      return objectId;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public boolean isResolved() {
+      return UNRESOLVED != size;
+    }
+
+    public void resolve(@Nonnull final ObjectReader reader) throws IOException {
+      if (isResolved()) return;
+      if (FileMode.SYMLINK.equals(fileMode)) {
+        byte[] bytes = reader.open(objectId, Constants.OBJ_BLOB).getCachedBytes();
+        symlink = new String(bytes, StandardCharsets.UTF_8);
+        size = bytes.length;
+      } else {
+        size = reader.getObjectSize(objectId, Constants.OBJ_BLOB);
+      }
+    }
+
+    @Nullable
+    public String getSymlink() {
+      return symlink;
+    }
+
+    public boolean isDirectory() {
+      return FileMode.TREE.equals(fileMode) || FileMode.GITLINK.equals(fileMode);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated bare repository served over file://, with a working copy of the same files to use as a local baseline.
+ * Like a hosted remote, the bare repository accepts partial clone filters and fetches of reachable objects by id.
+ */
+public class BenchmarkFixture implements AutoCloseable {
+  private static final int FANOUT = 8;
+  @Nonnull
+  private final File directory;
+  @Nonnull
+  private final File workTree;
+  @Nonnull
+  private final File bareRepository;
+  @Nonnull
+  private final Git git;
+  @Nonnull
+  private final List<String> files = new ArrayList<>();
+  private final int blobSize;
+  private final Random random = new Random(42);
+  private int revision = 0;
+
+  public BenchmarkFixture(final int fileCount, final int depth, final int blobSize, final int history) throws IOException, GitAPIException {
+    this.blobSize = blobSize;
+    this.directory = Files.createTempDirectory("jgit-benchmark").toFile();
+    this.workTree = new File(directory, "work");
+    this.bareRepository = new File(directory, "fixture.git");
+    try (Git bare = Git.init().setBare(true).setDirectory(bareRepository).call()) {
+      StoredConfig config = bare.getRepository().getConfig();
+      config.setBoolean("uploadpack", null, "allowfilter", true);
+      config.setBoolean("uploadpack", null, "allowreachablesha1inwant", true);
+      config.save();
+    }
+    this.git = Git.init().setDirectory(workTree).call();
+    for (int i = 0; i < fileCount; i++) {
+      StringBuilder path = new StringBuilder();
+      for (int level = 0, scale = 1; level < depth; level++, scale *= FANOUT) {
+        path.append("d").append((i / scale) % FANOUT).append("/");
+      }
+      files.add(path.append("f").append(i).append(".bin").toString());
+    }
+    for (String file : files) write(file);
+    commit();
+    for (int i = 1; i < history; i++) {
+      change(Math.max(1, fileCount / 100));
+    }
+  }
+
+  /**
+   * Rewrites the given number of files and pushes the result as a new commit on master.
+   */
+  public void change(final int count) throws IOException, GitAPIException {
+    for (int i = 0; i < count; i++) write(files.get(random.nextInt(files.size())));
+    commit();
+  }
+
+  /**
+   * Adds a symbolic link to the working copy and pushes it as a new commit on master.
+   */
+  public void symlink(@Nonnull final String path, @Nonnull final String target) throws IOException, GitAPIException {
+    File file = new File(workTree, path);
+    file.getParentFile().mkdirs();
+    Files.createSymbolicLink(file.toPath(), new File(target).toPath());
+    commit();
+  }
+
+  @Nonnull
+  public Configuration newConfiguration(final boolean worktree) {
+    Configuration configuration = new Configuration();
+    configuration.set("fs.jgit.remote.scheme", "file");
+    configuration.set("fs.jgit.datadir", new File(directory, "data").getAbsolutePath());
+    configuration.set("fs.jgit.worktree", Boolean.toString(worktree));
+    configuration.set("fs.jgit.pull.lazy", Integer.toString(Integer.MAX_VALUE));
+    configuration.set("fs.jgit.pull.eager", Integer.toString(Integer.MAX_VALUE));
+    configuration.set("fs.jgit.dismount.seconds", Integer.toString(Integer.MAX_VALUE));
+    configuration.set("fs.jgit.remote.ttl", "0");
+    return configuration;
+  }
+
+  /**
+   * Another path to the same bare repository, which the driver treats as a separate remote.
+   */
+  @Nonnull
+  public File newMirror() throws IOException {
+    File mirror = new File(directory, "mirror-" + System.nanoTime() + ".git");
+    Files.createSymbolicLink(mirror.toPath(), bareRepository.toPath());
+    return mirror;
+  }
+
+  @Nonnull
+  public String getGitRoot(@Nonnull final File repository) {
+    return "git://" + repository.getAbsolutePath() + "/master/";
+  }
+
+  @Nonnull
+  public File getDirectory() {
+    return directory;
+  }
+
+  @Nonnull
+  public File getWorkTree() {
+    return workTree;
+  }
+
+  @Nonnull
+  public File getBareRepository() {
+    return bareRepository;
+  }
+
+  @Nonnull
+  public List<String> getFiles() {
+    return Collections.unmodifiableList(files);
+  }
+
+  @Override
+  public void close() {
+    git.close();
+    FileUtil.fullyDelete(directory);
+  }
+
+  private void write(@Nonnull final String path) throws IOException {
+    File file = new File(workTree, path);
+    file.getParentFile().mkdirs();
+    byte[] data = new byte[blobSize];
+    random.nextBytes(data);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  private void commit() throws GitAPIException {
+    PersonIdent ident = new PersonIdent("benchmark", "benchmark@localhost");
+    git.add().addFilepattern(".").call();
+    git.commit().setMessage("Revision " + revision++).setAuthor(ident).setCommitter(ident).call();
+    git.push().setRemote(bareRepository.toURI().toString()).setRefSpecs(new RefSpec("refs/heads/master:refs/heads/master")).setForce(true).call();
+  }
+}
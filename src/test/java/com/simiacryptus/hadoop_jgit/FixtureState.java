@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fixture shape and filesystem under test shared by the benchmarks.
+ * The "local" implementation reads the fixture's working copy through RawLocalFileSystem as a baseline;
+ * "git" serves the same files from a checked out snapshot and "git-odb" from the object database.
+ */
+@State(Scope.Benchmark)
+public class FixtureState {
+  @Param({"local", "git", "git-odb"})
+  public String impl;
+  @Param({"1000"})
+  public int files;
+  @Param({"3"})
+  public int depth;
+  @Param({"16384"})
+  public int blobSize;
+  @Param({"10"})
+  public int history;
+
+  protected BenchmarkFixture fixture;
+  protected FileSystem fileSystem;
+  protected RawLocalFileSystem localFileSystem;
+  protected GitFileSystem gitFileSystem;
+  protected Path root;
+  protected Path[] paths;
+  protected Path[] directories;
+
+  @Setup(Level.Trial)
+  public void setupFixture() throws Exception {
+    fixture = new BenchmarkFixture(files, depth, blobSize, history);
+    localFileSystem = new RawLocalFileSystem();
+    localFileSystem.initialize(URI.create("file:///"), fixture.newConfiguration(true));
+    if (isLocal()) {
+      root = new Path(fixture.getWorkTree().toURI());
+      fileSystem = localFileSystem;
+    } else {
+      gitFileSystem = new GitFileSystem();
+      gitFileSystem.setConf(fixture.newConfiguration(!"git-odb".equals(impl)));
+      root = new Path(fixture.getGitRoot(fixture.getBareRepository()));
+      fileSystem = gitFileSystem;
+      fileSystem.getFileStatus(root);
+    }
+    List<String> fixtureFiles = fixture.getFiles();
+    paths = new Path[fixtureFiles.size()];
+    Set<String> parents = new LinkedHashSet<>();
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = new Path(root, fixtureFiles.get(i));
+      parents.add(TreeIndex.parent(fixtureFiles.get(i)));
+    }
+    directories = new Path[parents.size()];
+    int i = 0;
+    for (String parent : parents) {
+      directories[i++] = parent.isEmpty() ? root : new Path(root, parent);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownFixture() {
+    fixture.close();
+  }
+
+  public boolean isLocal() {
+    return "local".equals(impl);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metadata call rates over the files and directories of the fixture.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataBenchmark extends FixtureState {
+  private int nextFile = 0;
+  private int nextDirectory = 0;
+
+  @Benchmark
+  public FileStatus getFileStatus() throws IOException {
+    return fileSystem.getFileStatus(paths[nextFile++ % paths.length]);
+  }
+
+  @Benchmark
+  public FileStatus[] listStatus() throws IOException {
+    return fileSystem.listStatus(directories[nextDirectory++ % directories.length]);
+  }
+
+  @Benchmark
+  public long listFilesRecursive() throws IOException {
+    long length = 0;
+    RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(root, true);
+    while (iterator.hasNext()) length += iterator.next().getLen();
+    return length;
+  }
+
+  @Benchmark
+  public FileStatus[] globStatus() throws IOException {
+    return fileSystem.globStatus(new Path(root, "*/*/d0/*.bin"));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to mount a repository not seen before, i.e. clone, index and (in worktree mode) check out.
+ * Each invocation mounts the fixture through a fresh symlink so nothing is reused from earlier mounts.
+ * The local baseline copies the fixture's files with RawLocalFileSystem.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+public class MountBenchmark extends FixtureState {
+  private File mirror;
+
+  @Setup(Level.Invocation)
+  public void createMirror() throws IOException {
+    mirror = fixture.newMirror();
+  }
+
+  @Benchmark
+  public Object mount() throws IOException {
+    if (isLocal()) {
+      Path target = new Path(new File(fixture.getDirectory(), mirror.getName() + "-copy").toURI());
+      for (FileStatus status : localFileSystem.listStatus(root)) {
+        if (status.getPath().getName().equals(".git")) continue;
+        FileUtil.copy(localFileSystem, status.getPath(), localFileSystem, new Path(target, status.getPath().getName()), false, localFileSystem.getConf());
+      }
+      return target;
+    }
+    return gitFileSystem.getFileStatus(new Path(fixture.getGitRoot(mirror)));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mounts a generated repository with a blob:none filter, checks that no file contents were cloned, and that opening a
+ * file fetches just its blob; then checks out a worktree from a partial clone and checks that symbolic links are
+ * written as links. Run with {@code java -cp ... com.simiacryptus.hadoop_jgit.PartialCloneTest}; it throws
+ * on failure.
+ */
+public class PartialCloneTest {
+
+  public static void main(@Nonnull String[] args) throws Exception {
+    try (BenchmarkFixture fixture = new BenchmarkFixture(64, 2, 4096, 1)) {
+      String link = "links/first";
+      String target = "../" + fixture.getFiles().get(0);
+      fixture.symlink(link, target);
+      Map<String, ObjectId> blobs = blobs(fixture.getBareRepository());
+      Configuration configuration = fixture.newConfiguration(false);
+      configuration.set("fs.jgit.fetch.filter", "blob:none");
+      GitFileSystem gitFileSystem = new GitFileSystem();
+      gitFileSystem.setConf(configuration);
+      Path root = new Path(fixture.getGitRoot(fixture.getBareRepository()));
+      check(gitFileSystem.listStatus(root).length > 0, "Mounted " + root);
+      GitRepoFileSystem mount = gitFileSystem.route(root);
+      try {
+        ObjectDatabase objectDatabase = mount.getRepository().getObjectDatabase();
+        for (ObjectId blob : blobs.values()) check(!objectDatabase.has(blob), "Blob " + blob.name() + " was not cloned");
+        String file = fixture.getFiles().get(0);
+        byte[] expected = Files.readAllBytes(new File(fixture.getWorkTree(), file).toPath());
+        long fetches = mount.getMountStatistics().getLong(MountStatistics.FETCHES);
+        try (FSDataInputStream in = gitFileSystem.open(new Path(root, file))) {
+          check(Arrays.equals(expected, IOUtils.toByteArray(in)), "Content of " + file + " matches");
+        }
+        check(mount.getMountStatistics().getLong(MountStatistics.FETCHES) == fetches + 1, "Opening " + file + " fetched once");
+        check(objectDatabase.has(blobs.get(file)), "Blob of " + file + " was fetched");
+        for (Map.Entry<String, ObjectId> entry : blobs.entrySet()) {
+          if (!entry.getKey().equals(file)) check(!objectDatabase.has(entry.getValue()), "Blob of " + entry.getKey() + " is still missing");
+        }
+      } finally {
+        mount.release();
+      }
+      System.out.println("Partial clone fetched " + blobs.size() + " blobs lazily");
+      Configuration worktreeConfiguration = fixture.newConfiguration(true);
+      worktreeConfiguration.set("fs.jgit.fetch.filter", "blob:none");
+      GitFileSystem worktreeFileSystem = new GitFileSystem();
+      worktreeFileSystem.setConf(worktreeConfiguration);
+      Path mirror = new Path(fixture.getGitRoot(fixture.newMirror()));
+      check(worktreeFileSystem.getFileStatus(new Path(mirror, link)).isSymlink(), link + " is listed as a symbolic link");
+      GitRepoFileSystem worktreeMount = worktreeFileSystem.route(mirror);
+      try {
+        File[] checkouts = new File(worktreeMount.getGitDir(), "snapshots").listFiles(File::isDirectory);
+        check(null != checkouts && 1 == checkouts.length, "One checkout of " + mirror);
+        java.nio.file.Path file = new File(checkouts[0], link).toPath();
+        check(Files.isSymbolicLink(file), link + " is checked out as a symbolic link");
+        check(target.equals(Files.readSymbolicLink(file).toString()), link + " points to " + target);
+      } finally {
+        worktreeMount.release();
+      }
+      System.out.println("Partial clone checked out " + link + " as a symbolic link");
+    }
+  }
+
+  @Nonnull
+  private static Map<String, ObjectId> blobs(@Nonnull final File bareRepository) throws Exception {
+    Map<String, ObjectId> blobs = new LinkedHashMap<>();
+    try (Repository repository = new FileRepositoryBuilder().setGitDir(bareRepository).build();
+         TreeWalk treeWalk = new TreeWalk(repository)) {
+      treeWalk.addTree(repository.resolve("master^{tree}"));
+      treeWalk.setRecursive(true);
+      while (treeWalk.next()) blobs.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+    }
+    return blobs;
+  }
+
+  private static void check(final boolean condition, @Nonnull final String description) {
+    if (!condition) throw new AssertionError("Failed: " + description);
+  }
+}
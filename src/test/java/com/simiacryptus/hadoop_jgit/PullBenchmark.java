@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a refresh when the remote is unchanged and after a commit touching a few files.
+ * The local baseline is the directory listing a poller of the working copy would need to notice a change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PullBenchmark extends FixtureState {
+  @Param({"1"})
+  public int changedFiles;
+
+  private GitRepoFileSystem mount;
+
+  @Setup(Level.Trial)
+  public void acquireMount() {
+    if (!isLocal()) mount = gitFileSystem.route(root);
+  }
+
+  @TearDown(Level.Trial)
+  public void releaseMount() {
+    if (null != mount) mount.release();
+  }
+
+  @Setup(Level.Invocation)
+  public void pushChange(final BenchmarkParams params) throws Exception {
+    if (params.getBenchmark().endsWith("incrementalPull")) fixture.change(changedFiles);
+  }
+
+  @Benchmark
+  public Object noOpPull() throws IOException {
+    if (isLocal()) return localFileSystem.listStatus(root);
+    mount.pull();
+    return mount.getCommitId();
+  }
+
+  @Benchmark
+  public Object incrementalPull() throws IOException {
+    if (isLocal()) return localFileSystem.listStatus(root);
+    mount.pull();
+    return mount.getCommitId();
+  }
+}
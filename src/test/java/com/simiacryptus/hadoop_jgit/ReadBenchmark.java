@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.hadoop_jgit;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential whole-file reads across the fixture and random positioned reads within one open file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReadBenchmark extends FixtureState {
+  @Param({"4096"})
+  public int readSize;
+
+  private final Random random = new Random(42);
+  private byte[] buffer;
+  private FSDataInputStream stream;
+  private int next = 0;
+
+  @Setup(Level.Iteration)
+  public void openStream() throws IOException {
+    buffer = new byte[Math.max(readSize, 64 * 1024)];
+    stream = fileSystem.open(paths[0]);
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeStream() throws IOException {
+    stream.close();
+  }
+
+  @Benchmark
+  public long sequentialRead() throws IOException {
+    long total = 0;
+    try (FSDataInputStream in = fileSystem.open(paths[next++ % paths.length])) {
+      int read;
+      while ((read = in.read(buffer, 0, buffer.length)) >= 0) total += read;
+    }
+    return total;
+  }
+
+  @Benchmark
+  public int randomRead() throws IOException {
+    int length = Math.min(readSize, blobSize);
+    long position = blobSize == length ? 0 : (long) (random.nextDouble() * (blobSize - length));
+    stream.readFully(position, buffer, 0, length);
+    return buffer[0];
+  }
+}